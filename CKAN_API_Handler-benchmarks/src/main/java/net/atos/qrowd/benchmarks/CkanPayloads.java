@@ -0,0 +1,194 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.atos.qrowd.pojos.Organization;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.pojos.Tag;
+import net.atos.qrowd.pojos.adapters.CkanGson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Builds CKAN API payloads shaped like the ones of a real instance, with every field CKAN returns filled in.
+ * The content is generated from a fixed seed, so every run of a benchmark parses exactly the same bytes.
+ */
+public final class CkanPayloads {
+
+    private static final String[] FORMATS = {"CSV", "JSON", "XLSX", "GeoJSON", "ZIP"};
+
+    private CkanPayloads() {
+    }
+
+    /**
+     * @param packages Number of packages
+     * @param resourcesPerPackage Number of resources of each package
+     * @param seed Seed of the generated content
+     * @return Packages with their resources, tags and organization
+     */
+    public static List<Package_> packages(int packages, int resourcesPerPackage, long seed) {
+        Random random = new Random(seed);
+        List<Package_> list = new ArrayList<>();
+        for (int i = 0; i < packages; i++) {
+            list.add(newPackage("dataset_" + i, resourcesPerPackage, random));
+        }
+        return list;
+    }
+
+    /**
+     * Body of a package_search response
+     */
+    public static String packageSearch(int packages, int resourcesPerPackage, long seed) {
+        JsonArray results = new JsonArray();
+        for (Package_ dataset : packages(packages, resourcesPerPackage, seed)) {
+            results.add(CkanGson.get().toJsonTree(dataset));
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("count", packages);
+        result.addProperty("sort", "name asc");
+        result.add("facets", new JsonObject());
+        result.add("results", results);
+        result.add("search_facets", new JsonObject());
+        return envelope("package_search", result);
+    }
+
+    /**
+     * Body of a resource_search response
+     */
+    public static String resourceSearch(int resources, long seed) {
+        Random random = new Random(seed);
+        JsonArray results = new JsonArray();
+        String packageId = uuid(random);
+        for (int i = 0; i < resources; i++) {
+            results.add(CkanGson.get().toJsonTree(newResource("resource_" + i, packageId, i, random)));
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("count", resources);
+        result.add("results", results);
+        return envelope("resource_search", result);
+    }
+
+    private static String envelope(String action, JsonObject result) {
+        JsonObject response = new JsonObject();
+        response.addProperty("help", "https://ckan.example.org/api/3/action/help_show?name=" + action);
+        response.addProperty("success", true);
+        response.add("result", result);
+        return response.toString();
+    }
+
+    private static Package_ newPackage(String name, int resourcesPerPackage, Random random) {
+        Package_ dataset = new Package_();
+        String id = uuid(random);
+        dataset.setId(id);
+        dataset.setName(name);
+        dataset.setTitle("Dataset " + name.replace('_', ' '));
+        dataset.setNotes(text(random, 400));
+        dataset.setAuthor("Open data team");
+        dataset.setAuthorEmail("opendata@example.org");
+        dataset.setMaintainer("Data steward");
+        dataset.setMaintainerEmail("steward@example.org");
+        dataset.setLicenseId("cc-by");
+        dataset.setLicenseTitle("Creative Commons Attribution");
+        dataset.setLicenseUrl("http://www.opendefinition.org/licenses/cc-by");
+        dataset.setMetadataCreated(date(random));
+        dataset.setMetadataModified(date(random));
+        dataset.setState("active");
+        dataset.setType("dataset");
+        dataset.setPrivate(random.nextBoolean());
+        dataset.setIsopen(true);
+        dataset.setVersion("1.0");
+        dataset.setRevisionId(uuid(random));
+        dataset.setCreatorUserId(uuid(random));
+
+        Organization organization = new Organization();
+        organization.setId(uuid(random));
+        organization.setName("organization_" + random.nextInt(20));
+        organization.setTitle("Organization");
+        organization.setDescription(text(random, 120));
+        organization.setType("organization");
+        organization.setState("active");
+        organization.setIsOrganization(true);
+        organization.setApprovalStatus("approved");
+        organization.setCreated(date(random));
+        dataset.setOrganization(organization);
+        dataset.setOwnerOrg(organization.getId());
+
+        List<Tag> tags = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Tag tag = new Tag();
+            tag.setId(uuid(random));
+            tag.setName("tag_" + random.nextInt(100));
+            tag.setDisplayName(tag.getName());
+            tag.setState("active");
+            tags.add(tag);
+        }
+        dataset.setTags(tags);
+        dataset.setNumTags(tags.size());
+
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < resourcesPerPackage; i++) {
+            resources.add(newResource(name + "_file_" + i, id, i, random));
+        }
+        dataset.setResources(resources);
+        dataset.setNumResources(resources.size());
+        return dataset;
+    }
+
+    private static Resource newResource(String name, String packageId, int position, Random random) {
+        Resource res = new Resource();
+        String id = uuid(random);
+        String format = FORMATS[random.nextInt(FORMATS.length)];
+        res.setId(id);
+        res.setPackageId(packageId);
+        res.setName(name + "." + format.toLowerCase());
+        res.setDescription(text(random, 150));
+        res.setFormat(format);
+        res.setMimetype("text/" + format.toLowerCase());
+        res.setUrl("https://ckan.example.org/dataset/" + packageId + "/resource/" + id + "/download/" + res.getName());
+        res.setUrlType("upload");
+        res.setHash(String.format("%064x", random.nextLong() & Long.MAX_VALUE));
+        res.setSize((long) random.nextInt(50000000));
+        res.setState("active");
+        res.setCreated(date(random));
+        res.setLastModified(date(random));
+        res.setPosition(position);
+        res.setRevisionId(uuid(random));
+        return res;
+    }
+
+    private static String uuid(Random random) {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    private static String date(Random random) {
+        return String.format("2018-%02d-%02dT%02d:%02d:%02d.%06d", 1 + random.nextInt(12), 1 + random.nextInt(28),
+                random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000000));
+    }
+
+    private static String text(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append("lorem ipsum dolor sit amet ".charAt(random.nextInt(27)));
+        }
+        return sb.toString();
+    }
+}
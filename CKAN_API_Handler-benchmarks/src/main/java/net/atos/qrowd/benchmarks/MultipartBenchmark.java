@@ -0,0 +1,148 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.benchmarks;
+
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.DigestBody;
+import net.atos.qrowd.handlers.SizedInputStreamBody;
+import net.atos.qrowd.pojos.Resource;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and writing the multipart entities of resource_create, as the handler sends them, to a stream that
+ * discards the bytes: the cost on the client side of an upload, without the network.
+ * The entities are built by the same builders of the handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartBenchmark {
+
+    //Size of the file uploaded, in bytes
+    @Param({"1024", "1048576", "16777216"})
+    public int fileSize;
+
+    private File file;
+    private byte[] content;
+    private Resource resource;
+
+    @Setup
+    public void setup() throws IOException {
+        content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        file = File.createTempFile("ckan-benchmark", ".csv");
+        Files.write(file.toPath(), content);
+        resource = CkanPayloads.packages(1, 1, 42).get(0).getResources().get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * The entity of uploadFile: a new resource with the file in the file and upload parts
+     */
+    @Benchmark
+    public long uploadFile() throws IOException {
+        ContentBody cbFile = new FileBody(file, ContentType.TEXT_HTML);
+        MultipartEntityBuilder multipart = CKAN_API_Handler.resourceUploadMultipart(file.getName(), "dataset_0");
+        return write(CKAN_API_Handler.addHash(CKAN_API_Handler.addContent(multipart, cbFile), null).build());
+    }
+
+    /**
+     * The entity of uploadFile when the stream is hashed as it is sent, the hash going in the last part
+     */
+    @Benchmark
+    public long uploadFileHashing() throws IOException {
+        DigestBody digest = new DigestBody();
+        ContentBody body = new SizedInputStreamBody(digest.hashing(new ByteArrayInputStream(content)), ContentType.TEXT_HTML, file.getName(), content.length);
+        MultipartEntityBuilder multipart = CKAN_API_Handler.resourceUploadMultipart(file.getName(), "dataset_0");
+        return write(CKAN_API_Handler.addHash(CKAN_API_Handler.addContent(multipart, body), digest).build());
+    }
+
+    /**
+     * The entity of uploadFilePojo: a copy of an existing resource, with its metadata
+     */
+    @Benchmark
+    public long uploadFilePojo() throws IOException {
+        ContentBody cbFile = new FileBody(file, ContentType.TEXT_HTML);
+        MultipartEntityBuilder multipart = CKAN_API_Handler.resourceCreateMultipart(resource, "dataset_0", resource.getName());
+        return write(CKAN_API_Handler.addContent(multipart, cbFile).build());
+    }
+
+    /**
+     * The entity of copyFilePojoStreaming: the content is only sent once, in the upload part
+     */
+    @Benchmark
+    public long copyFilePojoStreaming() throws IOException {
+        ContentBody cbStream = new SizedInputStreamBody(new ByteArrayInputStream(content), ContentType.APPLICATION_OCTET_STREAM, resource.getName(), content.length);
+        MultipartEntityBuilder multipart = CKAN_API_Handler.resourceCreateMultipart(resource, "dataset_0", resource.getName());
+        return write(CKAN_API_Handler.addContent(multipart, cbStream).build());
+    }
+
+    private static long write(HttpEntity entity) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        entity.writeTo(out);
+        return out.count;
+    }
+
+    /**
+     * Discards what is written, counting the bytes so the work cannot be optimized away
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.benchmarks;
+
+import com.google.gson.Gson;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.adapters.CkanGson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a package for package_create, as done by createPackagePojoNoResources and packageToJson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackageSerializationBenchmark {
+
+    //A package for package_create has no resources, a package backed up to an archive has all of them
+    @Param({"0", "10", "100"})
+    public int resources;
+
+    private final Gson codec = CkanGson.get();
+    private final Gson reflective = new Gson();
+    private Package_ dataset;
+
+    @Setup
+    public void setup() {
+        dataset = CkanPayloads.packages(1, resources, 42).get(0);
+    }
+
+    @Benchmark
+    public String packageCreateCodec() {
+        return codec.toJson(dataset);
+    }
+
+    @Benchmark
+    public String packageCreateReflective() {
+        return reflective.toJson(dataset);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.benchmarks;
+
+import com.google.gson.Gson;
+import net.atos.qrowd.handlers.CkanResponseReader;
+import net.atos.qrowd.pojos.CkanFullList;
+import net.atos.qrowd.pojos.ResourceResponse;
+import net.atos.qrowd.pojos.adapters.CkanGson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of package_search and resource_search responses: the hand-written type adapters of CkanGson against
+ * reflective Gson, and the streaming reader used by the handler against binding the whole response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    //Number of packages, or resources, in the response
+    @Param({"1", "100", "1000"})
+    public int results;
+
+    @Param({"10"})
+    public int resourcesPerPackage;
+
+    private final Gson codec = CkanGson.get();
+    private final Gson reflective = new Gson();
+    private String packageSearch;
+    private byte[] packageSearchBytes;
+    private String resourceSearch;
+
+    @Setup
+    public void setup() {
+        packageSearch = CkanPayloads.packageSearch(results, resourcesPerPackage, 42);
+        packageSearchBytes = packageSearch.getBytes(StandardCharsets.UTF_8);
+        resourceSearch = CkanPayloads.resourceSearch(results, 42);
+    }
+
+    @Benchmark
+    public CkanFullList packageSearchCodec() {
+        return codec.fromJson(packageSearch, CkanFullList.class);
+    }
+
+    @Benchmark
+    public CkanFullList packageSearchReflective() {
+        return reflective.fromJson(packageSearch, CkanFullList.class);
+    }
+
+    /**
+     * The handler reads the packages one by one from the stream of the response
+     */
+    @Benchmark
+    public int packageSearchStreaming(final Blackhole blackhole) throws IOException {
+        return CkanResponseReader.readPackages(new ByteArrayInputStream(packageSearchBytes), codec, blackhole::consume);
+    }
+
+    /**
+     * What packageExists does without the metadata cache: count the packages without binding them
+     */
+    @Benchmark
+    public int packageSearchCount() throws IOException {
+        return CkanResponseReader.countPackages(new ByteArrayInputStream(packageSearchBytes), 2);
+    }
+
+    @Benchmark
+    public ResourceResponse resourceSearchCodec() {
+        return codec.fromJson(resourceSearch, ResourceResponse.class);
+    }
+
+    @Benchmark
+    public ResourceResponse resourceSearchReflective() {
+        return reflective.fromJson(resourceSearch, ResourceResponse.class);
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The regexes replacing the characters CKAN does not accept in tags and resource names, and the split of the
+ * file names, as String.replaceAll/split compile them on each call, against a precompiled Pattern
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitisationBenchmark {
+
+    private static final String NOT_ACCEPTED = "[^\\.a-zA-Z0-9]+";
+    private static final Pattern NOT_ACCEPTED_PATTERN = Pattern.compile(NOT_ACCEPTED);
+    private static final Pattern DOT_PATTERN = Pattern.compile("\\.");
+
+    //A tag list as set in the processors, and resource names with and without characters to replace
+    public String tags = "open data,transport,bus stops,2018 survey,city-of-trento";
+    public String cleanName = "bus_stops_2018.csv";
+    public String dirtyName = "Bus stops (2018) - Trento, Italy.csv";
+
+    @Benchmark
+    public void tagsReplaceAll(final Blackhole blackhole) {
+        for (String tag : tags.split(",")) {
+            blackhole.consume(tag.replaceAll(NOT_ACCEPTED, "_"));
+        }
+    }
+
+    @Benchmark
+    public void tagsPattern(final Blackhole blackhole) {
+        for (String tag : tags.split(",")) {
+            blackhole.consume(NOT_ACCEPTED_PATTERN.matcher(tag).replaceAll("_"));
+        }
+    }
+
+    @Benchmark
+    public String cleanNameReplaceAll() {
+        return cleanName.replaceAll(NOT_ACCEPTED, "_");
+    }
+
+    @Benchmark
+    public String cleanNamePattern() {
+        return NOT_ACCEPTED_PATTERN.matcher(cleanName).replaceAll("_");
+    }
+
+    @Benchmark
+    public String dirtyNameReplaceAll() {
+        return dirtyName.replaceAll(NOT_ACCEPTED, "_");
+    }
+
+    @Benchmark
+    public String dirtyNamePattern() {
+        return NOT_ACCEPTED_PATTERN.matcher(dirtyName).replaceAll("_");
+    }
+
+    /**
+     * How the key of a new resource is taken from its file name
+     */
+    @Benchmark
+    public String fileKeySplit() {
+        return cleanName.split("\\.")[0];
+    }
+
+    @Benchmark
+    public String fileKeyPattern() {
+        return DOT_PATTERN.split(cleanName)[0];
+    }
+}
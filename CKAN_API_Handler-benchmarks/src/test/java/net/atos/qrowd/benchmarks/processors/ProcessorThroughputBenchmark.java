@@ -0,0 +1,387 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.benchmarks.processors;
+
+import net.atos.qrowd.handlers.fake.FakeCkanServer;
+import net.atos.qrowd.processors.nifiCKANDatasetBackup.CKAN_Package_Backup;
+import net.atos.qrowd.processors.nifiCKANprocessor.CKAN_Flowfile_Uploader;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End to end throughput of CKAN_Flowfile_Uploader and CKAN_Package_Backup, run by the TestRunner of nifi-mock against
+ * a FakeCkanServer, for each combination of number of concurrent tasks, file size and upload strategy or copy mode.
+ * For each run it reports the flowfiles and bytes per second, the 50th and 99th percentiles of the time taken by the
+ * execution processing each flowfile, and the number of calls to the CKAN API per flowfile.
+ *
+ * The settings are given as name=value arguments, see the README of the module. Not a JMH benchmark: a run is a
+ * whole batch of flowfiles, started after a shorter warm up run of the same combination.
+ */
+public class ProcessorThroughputBenchmark {
+
+    private static final String ORGANIZATION = "benchmark";
+    private static final String API_KEY = "benchmark";
+    private static final long RUN_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+    private static final AtomicInteger runs = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = new Settings(args);
+        if (!settings.verbose) {
+            //Each flowfile logs several lines, printing them would be measured too
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "off");
+            LogManager.getLoggerRepository().setThreshold(Level.OFF);
+        }
+
+        try (FakeCkanServer ckan = new FakeCkanServer()) {
+            ckan.setLatency(settings.minLatency, settings.maxLatency);
+            ckan.setErrorRate(settings.errorRate);
+            //Only the sizes of the files are kept, the downloads return zeros
+            ckan.setStoreContent(false);
+
+            System.out.printf("%-9s %-15s %7s %8s %9s %10s %9s %9s %9s %9s %7s%n", "Processor", "Mode", "Threads", "Size",
+                    "Flowfiles", "Flowfile/s", "MB/s", "p50 (ms)", "p99 (ms)", "Calls/ff", "Failed");
+            if (settings.processors.contains("uploader")) {
+                for (String strategy : settings.uploadStrategies) {
+                    for (long size : settings.sizes) {
+                        for (int threads : settings.threads) {
+                            runUploader(ckan, settings, strategy, size, threads, settings.warmupFlowFiles(size));
+                            print("Uploader", strategy, threads, size, runUploader(ckan, settings, strategy, size, threads, settings.flowFiles(size)));
+                        }
+                    }
+                }
+            }
+            if (settings.processors.contains("backup")) {
+                for (String mode : settings.copyModes) {
+                    for (long size : settings.sizes) {
+                        for (int threads : settings.threads) {
+                            long packageSize = size * settings.resources;
+                            runBackup(ckan, settings, mode, size, threads, settings.warmupFlowFiles(packageSize));
+                            print("Backup", mode, threads, size, runBackup(ckan, settings, mode, size, threads, settings.flowFiles(packageSize)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Upload flowfiles of the given size, with a new file name each, spread over the packages of the settings
+     */
+    private static Result runUploader(FakeCkanServer ckan, Settings settings, String strategy, long size, int threads, int flowFiles) {
+        LatencyRecorder latencies = new LatencyRecorder(flowFiles);
+        TestRunner runner = TestRunners.newTestRunner(new TimedUploader(latencies));
+        runner.setProperty("CKAN_url", ckan.getUrl());
+        runner.setProperty("Api_Key", API_KEY);
+        runner.setProperty("organization_id", ORGANIZATION);
+        runner.setProperty("upload_strategy", strategy);
+        setPool(runner, threads);
+
+        String run = "run" + runs.incrementAndGet();
+        byte[] content = content(size);
+        for (int i = 0; i < flowFiles; i++) {
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("filename", "file_" + i + ".csv");
+            attributes.put("ckan_package_name", run + "_" + (i % settings.packages));
+            runner.enqueue(content, attributes);
+        }
+
+        Result result = run(ckan, runner, threads, flowFiles, latencies);
+        result.failed = runner.getFlowFilesForRelationship("failure").size();
+        result.bytes = (long) runner.getFlowFilesForRelationship("SUCCESS").size() * size;
+        return result;
+    }
+
+    /**
+     * Back up, once per flowfile, a package with the resources of the settings of the given size.
+     * Each backup creates its own dated package, the ones started in the same second get a suffix, as they do when deployed.
+     */
+    private static Result runBackup(FakeCkanServer ckan, Settings settings, String mode, long size, int threads, int flowFiles) {
+        String source = "run" + runs.incrementAndGet() + "_source";
+        ckan.addPackage(source, ORGANIZATION);
+        byte[] content = content(size);
+        for (int i = 0; i < settings.resources; i++) {
+            ckan.addResource(source, "resource_" + i + ".csv", content);
+        }
+
+        LatencyRecorder latencies = new LatencyRecorder(flowFiles);
+        TestRunner runner = TestRunners.newTestRunner(new TimedBackup(latencies));
+        runner.setProperty("CKAN_url", ckan.getUrl());
+        runner.setProperty("Api_Key", API_KEY);
+        runner.setProperty("package_name", source);
+        runner.setProperty("resource_copy_mode", mode);
+        setPool(runner, threads);
+        for (int i = 0; i < flowFiles; i++) {
+            runner.enqueue(new byte[0]);
+        }
+
+        Result result = run(ckan, runner, threads, flowFiles, latencies);
+        result.failed = runner.getFlowFilesForRelationship("failure").size()
+                + runner.getFlowFilesForRelationship("NO_PACKAGE_FOUND").size();
+        long copied = 0;
+        for (MockFlowFile flowFile : runner.getFlowFilesForRelationship("BACKUP_SUCCESS")) {
+            copied += Long.parseLong(flowFile.getAttribute("ckan.backup.resources.copied"));
+        }
+        result.bytes = copied * size;
+        return result;
+    }
+
+    /**
+     * Every task can hold a connection for a download and another one for an upload, the pool is sized so that
+     * it is not what is measured
+     */
+    private static void setPool(TestRunner runner, int threads) {
+        runner.setProperty("max_total_connections", String.valueOf(Math.max(20, 2 * threads)));
+        runner.setProperty("max_connections_per_route", String.valueOf(Math.max(10, 2 * threads)));
+    }
+
+    private static Result run(FakeCkanServer ckan, TestRunner runner, int threads, int flowFiles, LatencyRecorder latencies) {
+        runner.setThreadCount(threads);
+        runner.setRunSchedule(0);
+        ckan.resetCounters();
+
+        long start = System.nanoTime();
+        runner.run(flowFiles, true, true, RUN_TIMEOUT);
+        long elapsed = System.nanoTime() - start;
+
+        Result result = new Result();
+        result.flowFiles = flowFiles;
+        result.elapsed = elapsed;
+        result.calls = ckan.getTotalCalls();
+        result.p50 = latencies.percentile(0.50);
+        result.p99 = latencies.percentile(0.99);
+        return result;
+    }
+
+    private static void print(String processor, String mode, int threads, long size, Result result) {
+        double seconds = result.elapsed / 1e9;
+        System.out.printf("%-9s %-15s %7d %8s %9d %10.1f %9.2f %9.2f %9.2f %9.2f %7d%n", processor, mode, threads, formatSize(size),
+                result.flowFiles, result.flowFiles / seconds, result.bytes / seconds / (1024 * 1024),
+                result.p50 / 1e6, result.p99 / 1e6, (double) result.calls / result.flowFiles, result.failed);
+    }
+
+    private static String formatSize(long size) {
+        if (size >= 1024 * 1024 && size % (1024 * 1024) == 0) {
+            return size / (1024 * 1024) + " MB";
+        }
+        if (size >= 1024 && size % 1024 == 0) {
+            return size / 1024 + " KB";
+        }
+        return size + " B";
+    }
+
+    private static byte[] content(long size) {
+        byte[] content = new byte[(int) size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Time every execution of the processor, as the latency of each flowfile it took from the queue
+     */
+    private static void timeTrigger(LatencyRecorder latencies, ProcessSession session, TriggerCall trigger) {
+        AtomicInteger taken = new AtomicInteger();
+        ProcessSession counting = (ProcessSession) Proxy.newProxyInstance(ProcessSession.class.getClassLoader(),
+                new Class<?>[]{ProcessSession.class}, (proxy, method, arguments) -> {
+                    Object value;
+                    try {
+                        value = method.invoke(session, arguments);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if ("get".equals(method.getName())) {
+                        if (value instanceof FlowFile) {
+                            taken.incrementAndGet();
+                        } else if (value instanceof Collection) {
+                            taken.addAndGet(((Collection<?>) value).size());
+                        }
+                    }
+                    return value;
+                });
+        long start = System.nanoTime();
+        try {
+            trigger.run(counting);
+        } finally {
+            latencies.record(System.nanoTime() - start, taken.get());
+        }
+    }
+
+    private interface TriggerCall {
+        void run(ProcessSession session);
+    }
+
+    private static final class TimedUploader extends CKAN_Flowfile_Uploader {
+        private final LatencyRecorder latencies;
+
+        private TimedUploader(LatencyRecorder latencies) {
+            this.latencies = latencies;
+        }
+
+        @Override
+        public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+            timeTrigger(latencies, session, counting -> super.onTrigger(context, counting));
+        }
+    }
+
+    private static final class TimedBackup extends CKAN_Package_Backup {
+        private final LatencyRecorder latencies;
+
+        private TimedBackup(LatencyRecorder latencies) {
+            this.latencies = latencies;
+        }
+
+        @Override
+        public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+            timeTrigger(latencies, session, counting -> super.onTrigger(context, counting));
+        }
+    }
+
+    /**
+     * Latencies of the flowfiles of a run, in nanoseconds
+     */
+    private static final class LatencyRecorder {
+        private long[] values;
+        private int count;
+
+        private LatencyRecorder(int expected) {
+            values = new long[Math.max(expected, 1)];
+        }
+
+        private synchronized void record(long latency, int flowFiles) {
+            for (int i = 0; i < flowFiles; i++) {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count++] = latency;
+            }
+        }
+
+        private synchronized long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(percentile * count) - 1)];
+        }
+    }
+
+    private static final class Result {
+        private int flowFiles;
+        private long elapsed;
+        private long bytes;
+        private long calls;
+        private long p50;
+        private long p99;
+        private int failed;
+    }
+
+    /**
+     * Settings of the benchmark, from name=value arguments
+     */
+    private static final class Settings {
+        private List<String> processors = Arrays.asList("uploader", "backup");
+        private List<Integer> threads = Arrays.asList(1, 4, 8);
+        private List<Long> sizes = Arrays.asList(1024L, 1024L * 1024, 10L * 1024 * 1024);
+        private List<String> uploadStrategies = Arrays.asList("Stream", "Temporary File");
+        private List<String> copyModes = Arrays.asList("Temporary File", "Streaming", "Pipeline");
+        private int resources = 4;
+        private int packages = 10;
+        private long budget = 256L * 1024 * 1024;
+        private int minFlowFiles = 20;
+        private int maxFlowFiles = 1000;
+        private long minLatency;
+        private long maxLatency;
+        private double errorRate;
+        private boolean verbose;
+
+        private Settings(String[] args) {
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("Expected name=value, got " + arg);
+                }
+                String value = arg.substring(equals + 1);
+                switch (arg.substring(0, equals)) {
+                    case "processors": processors = split(value); break;
+                    case "threads": threads = new ArrayList<>(); split(value).forEach(v -> threads.add(Integer.parseInt(v))); break;
+                    case "sizes": sizes = new ArrayList<>(); split(value).forEach(v -> sizes.add(parseSize(v))); break;
+                    case "upload_strategies": uploadStrategies = split(value); break;
+                    case "copy_modes": copyModes = split(value); break;
+                    case "resources": resources = Integer.parseInt(value); break;
+                    case "packages": packages = Integer.parseInt(value); break;
+                    case "budget": budget = parseSize(value); break;
+                    case "min_flowfiles": minFlowFiles = Integer.parseInt(value); break;
+                    case "max_flowfiles": maxFlowFiles = Integer.parseInt(value); break;
+                    case "latency":
+                        //A fixed time, or a range as min-max, in milliseconds
+                        String[] range = value.split("-");
+                        minLatency = Long.parseLong(range[0].trim());
+                        maxLatency = range.length > 1 ? Long.parseLong(range[1].trim()) : minLatency;
+                        break;
+                    case "error_rate": errorRate = Double.parseDouble(value); break;
+                    case "verbose": verbose = Boolean.parseBoolean(value); break;
+                    default: throw new IllegalArgumentException("Unknown setting " + arg);
+                }
+            }
+        }
+
+        /**
+         * @return Number of flowfiles of a run, as many as fit in the budget of bytes within the limits
+         */
+        private int flowFiles(long bytesPerFlowFile) {
+            long fit = bytesPerFlowFile > 0 ? budget / bytesPerFlowFile : maxFlowFiles;
+            return (int) Math.max(minFlowFiles, Math.min(maxFlowFiles, fit));
+        }
+
+        private int warmupFlowFiles(long bytesPerFlowFile) {
+            return Math.max(1, flowFiles(bytesPerFlowFile) / 10);
+        }
+
+        private static List<String> split(String value) {
+            List<String> values = new ArrayList<>();
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+            return values;
+        }
+
+        private static long parseSize(String value) {
+            return DataUnit.parseDataSize(value, DataUnit.B).longValue();
+        }
+    }
+}
@@ -17,9 +17,12 @@ package net.atos.qrowd.handlers;
 
 import com.google.gson.Gson;
 import net.atos.qrowd.pojos.*;
-import org.apache.commons.io.FileUtils;
+import net.atos.qrowd.pojos.adapters.CkanGson;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
@@ -28,82 +31,152 @@ import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
+import java.io.OutputStream;
+import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-
+/**
+ * Client of the CKAN API for a CKAN instance and API key.
+ * The handler holds no state about the packages or organizations it works with, everything specific to a call
+ * is passed as an argument, so one instance can be shared by any number of threads. Concurrent calls are only
+ * limited by the size of the connection pool.
+ * The only thing kept between calls is the optional, thread-safe cache of the organizations and packages found,
+ * which saves the lookups of the uploads to the same package.
+ */
 public class CKAN_API_Handler {
     private final Logger log = Logger.getLogger(CKAN_API_Handler.class);
 
-    private String HOST;
-    private String api_key;
-    private String package_id;
-    private String organization_id;
-    private String package_description;
-    private CloseableHttpClient httpclient;
-    private Boolean package_private;
+    //Shared, thread-safe codec of the pojos
+    private static final Gson gson = CkanGson.get();
 
-    public CKAN_API_Handler(String HOST, String api_key, String filename, String organization_id, String package_description, Boolean package_private) {
-        this.HOST = HOST;
-        this.api_key = api_key;
-        this.package_id = filename.toLowerCase();
-        this.package_description = package_description;
-        this.organization_id = organization_id.toLowerCase();
-        this.package_private = package_private;
+    //Dates as compared by the search index of CKAN, to the millisecond in UTC
+    private static final DateTimeFormatter INDEXED_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 
-        this.httpclient = HttpClients.createDefault();
-    }
+    //Validation error of package_create when the name of the package is taken
+    private static final String NAME_IN_USE = "That URL is already in use.";
+    //Key of the extra of a backup package holding the id of the backup that created it
+    public static final String BACKUP_ID_EXTRA = "backup_id";
+
+    //Connections unused for longer than this are closed by the pool
+    private static final long IDLE_CONNECTION_TIMEOUT = 60000;
+
+    private final String HOST;
+    private final String api_key;
+    private final CloseableHttpClient httpclient;
+    //Organizations known to exist and packages found, with the ids of their resources, by lowercase name
+    private final MetadataCache<Boolean> organizations;
+    private final MetadataCache<PackageResources> packages;
+    private final ConnectionPoolSettings poolSettings;
 
     public CKAN_API_Handler(String HOST, String api_key)
+    {
+        this(HOST, api_key, ConnectionPoolSettings.DEFAULT);
+    }
+
+    public CKAN_API_Handler(String HOST, String api_key, ConnectionPoolSettings poolSettings)
+    {
+        this(HOST, api_key, poolSettings, MetadataCacheSettings.DISABLED);
+    }
+
+    public CKAN_API_Handler(String HOST, String api_key, ConnectionPoolSettings poolSettings, MetadataCacheSettings cacheSettings)
     {
         this.HOST = HOST;
         this.api_key = api_key;
 
-        this.httpclient = HttpClients.createDefault();
+        this.poolSettings = poolSettings;
+        this.httpclient = createHttpClient(poolSettings);
+        this.organizations = new MetadataCache<>(cacheSettings);
+        this.packages = new MetadataCache<>(cacheSettings);
     }
 
     /**
-     * Call the CKAN API to check if the dataset with the name passed as argument exists in the CKAN instance
+     * Build the http client used for every call of this handler. Connections are kept alive and pooled,
+     * so consecutive calls to the same CKAN instance do not pay a new TCP/TLS handshake each time.
+     * The pool is released when calling close()
+     * @param poolSettings Size of the pool and timeouts of the connections
+     * @return Client backed by a pooling connection manager
+     */
+    private static CloseableHttpClient createHttpClient(ConnectionPoolSettings poolSettings)
+    {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(poolSettings.getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(poolSettings.getMaxConnectionsPerRoute());
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(poolSettings.getConnectTimeout())
+                .setConnectionRequestTimeout(poolSettings.getConnectTimeout())
+                .setSocketTimeout(poolSettings.getSocketTimeout())
+                .build();
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * @return The size of the connection pool and the timeouts of the connections of this handler
+     */
+    public ConnectionPoolSettings getConnectionPoolSettings()
+    {
+        return poolSettings;
+    }
+
+    /**
+     * Call the CKAN API to check if the dataset with the name passed as argument exists in the CKAN instance.
+     * With the metadata cache, the package found is cached, so the checks and the uploads that follow need no other lookup
      * @param package_id The name of the package to check the existence of
      * @return boolean -> true if found, false in other case
      * @throws IOException Exception parsing the result message or closing the connection
      */
     public boolean packageExists(String package_id) throws IOException{
+        if (packages.isEnabled()) {
+            return getPackageResources(package_id) != null;
+        }
 
-        String line;
-        StringBuilder sb = new StringBuilder();
         HttpPost postRequest;
-        Gson gson = new Gson();
 
         postRequest = new HttpPost(HOST+"/api/3/action/package_search?q=name:"+package_id);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-        }
-        httpclient.close();
-        response.close();
-        // Parse the response into a POJO to be able to get results from it.
-        // ToDo: If no result is returned, raise an error (when converting to POJO fails or return code !=200?)
+        int statusCode;
+        int found = 0;
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            statusCode = response.getStatusLine().getStatusCode();
+            // Nothing is cached, so the packages of the response are counted straight from the stream, without binding them
+            // ToDo: If no result is returned, raise an error (when converting to POJO fails or return code !=200?)
+            if(statusCode==200) {
+                found = CkanResponseReader.countPackages(response.getEntity().getContent(), 2);
+            }
+            EntityUtils.consume(response.getEntity());
+        }
         if(statusCode==200) {
-            CkanFullList CkanFullList = gson.fromJson(sb.toString(), CkanFullList.class);
             //by default we get the first package_ of the list of packages
-            if (CkanFullList.getPackage().getPackages().size() == 1) {
+            if (found == 1) {
                 log.info("Package: "+package_id+" was found in CKAN.");
                 return true;
             } else {
@@ -124,33 +197,27 @@ public class CKAN_API_Handler {
      */
     public Package_ getPackageByName(String name) throws IOException {
         HttpPost postRequest;
-        StringBuilder sb = new StringBuilder();
-        String line;
-
-        Gson gson = new Gson();
 
         //query the API to get the resources with that file name
         postRequest = new HttpPost(HOST+"/api/3/action/package_search?q=name:"+name);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-        }
-        httpclient.close();
-        response.close();
-        // Parse the response into a POJO to be able to get results from it.
-        // ToDo: If no result is returned, raise an error (when converting to POJO fails or return code !=200?)
+        int statusCode;
+        Package_ found = null;
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            statusCode = response.getStatusLine().getStatusCode();
+            // Parse the response into a POJO straight from the stream, skipping everything but the package
+            // ToDo: If no result is returned, raise an error (when converting to POJO fails or return code !=200?)
+            if(statusCode==200) {
+                found = CkanResponseReader.readSinglePackage(response.getEntity().getContent(), gson);
+            }
+            EntityUtils.consume(response.getEntity());
+        }
         if(statusCode==200) {
-            CkanFullList CkanFullList = gson.fromJson(sb.toString(), CkanFullList.class);
             //by default we get the first package_ of the list of packages
-            if (CkanFullList.getPackage().getPackages().size() == 1) {
+            if (found != null) {
                 log.info("Package: "+name+" was found in CKAN.");
-                return CkanFullList.getPackage().getPackages().get(0);
+                return found;
             } else {
                 log.warn("Package: "+name+" not found");
                 //ToDo: Null, really?
@@ -162,17 +229,90 @@ public class CKAN_API_Handler {
 
     }
 
+    /**
+     * Get a page of all the packages of the CKAN instance, private ones included, following a given package.
+     * The packages are sorted by creation date and id, an order the packages created, updated or deleted between two pages
+     * do not shift, unlike the pages at an offset: consecutive pages neither overlap nor skip packages.
+     * The packages are passed to callback as the response is read.
+     * @param after Key of the last package of the previous page, from getPageKey, null for the first page
+     * @param rows Maximum number of packages of the page
+     * @param excludedTag Packages with this tag are left out, null to get every package
+     * @param callback Receives each package of the page, with its resources
+     * @return Number of packages in the page, fewer than rows only for the last page
+     * @throws IOException Exception calling the API, if it does not return the page, or thrown by the callback
+     */
+    public int searchPackagesAfter(String after, int rows, String excludedTag, PackageCallback callback) throws IOException {
+        StringBuilder fq = new StringBuilder();
+        if (after != null) {
+            //Created later, or at the same time with a greater id
+            int separator = after.indexOf(' ');
+            String created = after.substring(0, separator);
+            String id = after.substring(separator + 1);
+            fq.append("+(metadata_created:{\"").append(created).append("\" TO *] OR (metadata_created:\"").append(created)
+                    .append("\" AND id:{\"").append(id).append("\" TO *]))");
+        }
+        if (excludedTag != null) {
+            fq.append(fq.length() > 0 ? " " : "").append("-tags:\"").append(excludedTag).append("\"");
+        }
+
+        HttpPost postRequest = new HttpPost(HOST+"/api/3/action/package_search?q=*:*&include_private=true"
+                + "&sort=" + URLEncoder.encode("metadata_created asc, id asc", "UTF-8")
+                + (fq.length() > 0 ? "&fq=" + URLEncoder.encode(fq.toString(), "UTF-8") : "")
+                + "&rows=" + rows);
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if(statusCode!=200) {
+                EntityUtils.consume(response.getEntity());
+                throw new IOException("Error searching the packages after " + after + ". statusCode =!=" + statusCode);
+            }
+            int found = CkanResponseReader.readPackages(response.getEntity().getContent(), gson, callback);
+            EntityUtils.consume(response.getEntity());
+            return found;
+        }
+    }
+
+    /**
+     * Key of a package in the order of searchPackagesAfter, to get the packages following it
+     * @param dataset Package found by searchPackagesAfter
+     * @return Creation date of the package, to the millisecond as CKAN indexes it, and its id
+     */
+    public static String getPageKey(Package_ dataset) {
+        LocalDateTime created = LocalDateTime.parse(dataset.getMetadataCreated());
+        return created.format(INDEXED_DATE_FORMAT) + " " + dataset.getId();
+    }
+
+    /**
+     * Get the ids of the resources of a package, from the cache if it was found recently
+     * @param name The name of the package
+     * @return The resources of the package, null if not found
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    private PackageResources getPackageResources(String name) throws IOException {
+        String key = name.toLowerCase();
+        PackageResources resources = packages.get(key);
+        if (resources == null) {
+            Package_ found = getPackageByName(name);
+            if (found != null) {
+                resources = new PackageResources(found);
+                packages.put(key, resources);
+            }
+        }
+        return resources;
+    }
+
     /**
      * Method to create an empty dataset  using the CKAN API
      * @param package_id Name of the package to be created
+     * @param organization_id Organization owning the package
+     * @param package_description Description of the package
+     * @param package_private Visibility of the package
      * @param tags Comma-separated String of tags to add to the dataset
+     * @return true if the package was created, or a package with that name exists
      * @throws IOException Exception parsing the result message or closing the connection
      */
-    public void createPackage(String package_id, String tags) throws IOException{
-
-        HttpPost postRequest;
-        StringBuilder sb = new StringBuilder();
-        String line;
+    public boolean createPackage(String package_id, String organization_id, String package_description, Boolean package_private, String tags) throws IOException{
 
         //Split <tags> by "," and for each element in the list generate a tag
         if(tags==null)
@@ -191,7 +331,7 @@ public class CKAN_API_Handler {
 
         Package_ pack = new Package_();
         pack.setName(package_id);
-        pack.setOwnerOrg(organization_id);
+        pack.setOwnerOrg(organization_id.toLowerCase());
         pack.setNotes(package_description);
         pack.setPrivate(package_private);
         //Set the new list of tags for the dataset
@@ -203,40 +343,35 @@ public class CKAN_API_Handler {
             pack.setTags(list);
             pack.setNumTags(list.size());
         }
-        Gson gson = new Gson();
-
         StringEntity reqEntity = new StringEntity(gson.toJson(pack));
 
-        postRequest = new HttpPost(HOST+"/api/3/action/package_create?use_default_schema=true");
-        postRequest.setEntity(reqEntity);
-        postRequest.setHeader("X-CKAN-API-Key", api_key);
-
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        sb.append(statusCode);
-        sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-        httpclient.close();
-        response.close();
+        return postPackage(HOST+"/api/3/action/package_create?use_default_schema=true", reqEntity, package_id, true, null);
+    }
 
-        if(statusCode!=200){
-            log.error("statusCode =!=" +statusCode);
-            log.error("Error creating the package via CKAN API. Package id: "+package_id);
-            log.error(sb);
-        }
-        else {
-            log.info("Request returns statusCode 200: OK");
-            log.info(sb);
-        }
+    /**
+     * Create a package with the metadata of another one and none of its resources, as the copy of a backup
+     * @param dataset Package copied, its name, identifiers, resources and tags are replaced
+     * @param name Name of the new package
+     * @param tags Comma-separated String of tags to add to the dataset
+     * @return true if the package was created, false if CKAN did not create it or the name is in use
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public boolean createPackagePojoNoResources(Package_ dataset, String name, String tags) throws IOException{
+        return createPackagePojoNoResources(dataset, name, tags, null);
     }
-    public void createPackagePojoNoResources(Package_ dataset, String name, String tags) throws IOException{
+
+    /**
+     * Create a package with the metadata of another one and none of its resources, as the copy of a backup, marked with
+     * the id of the backup in the extra {@value #BACKUP_ID_EXTRA}. Several clients copying the resources of the same backup
+     * may create it at the same time: a package with that name marked with the same id counts as created
+     * @param dataset Package copied, its name, identifiers, resources and tags are replaced
+     * @param name Name of the new package
+     * @param tags Comma-separated String of tags to add to the dataset
+     * @param backupId Id of the backup, or null if the name must not be in use
+     * @return true if the package was created, or created by the same backup, false otherwise
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public boolean createPackagePojoNoResources(Package_ dataset, String name, String tags, String backupId) throws IOException{
 
         //Split <tags> by "," and for each element in the list generate a tag
         if(tags==null)
@@ -253,9 +388,6 @@ public class CKAN_API_Handler {
             list.add(t);
         }
 
-        HttpPost postRequest;
-        StringBuilder sb = new StringBuilder();
-        String line;
         //Set the new dataset name and title
         dataset.setName(name);
         dataset.setTitle(name);
@@ -265,6 +397,21 @@ public class CKAN_API_Handler {
         dataset.setRevisionId(null);
         dataset.setResources(null);
         dataset.setNumResources(null);
+        if (backupId != null) {
+            List<Object> extras = new ArrayList<>();
+            if (dataset.getExtras() != null) {
+                for (Object extra : dataset.getExtras()) {
+                    if (!BACKUP_ID_EXTRA.equals(getExtraKey(extra))) {
+                        extras.add(extra);
+                    }
+                }
+            }
+            Map<String, String> backupIdExtra = new LinkedHashMap<>();
+            backupIdExtra.put("key", BACKUP_ID_EXTRA);
+            backupIdExtra.put("value", backupId);
+            extras.add(backupIdExtra);
+            dataset.setExtras(extras);
+        }
 
         //Set the new list of tags for the dataset
 
@@ -275,47 +422,103 @@ public class CKAN_API_Handler {
             dataset.setTags(list);
             dataset.setNumTags(list.size());
         }
-        Gson gson = new Gson();
+        String datasetJson = gson.toJson(dataset);
+        log.debug(datasetJson);
+        StringEntity reqEntity = new StringEntity(datasetJson);
+
+        return postPackage(HOST+"/api/action/package_create", reqEntity, name, false, backupId);
+    }
 
-        System.out.println(gson.toJson(dataset));
-        StringEntity reqEntity = new StringEntity(gson.toJson(dataset));
+    /**
+     * @return The id of the backup that created a package, in its extra {@value #BACKUP_ID_EXTRA}, null if it has none
+     */
+    public static String getBackupId(Package_ dataset) {
+        if (dataset == null || dataset.getExtras() == null) {
+            return null;
+        }
+        for (Object extra : dataset.getExtras()) {
+            if (BACKUP_ID_EXTRA.equals(getExtraKey(extra))) {
+                Object value = ((Map<?, ?>) extra).get("value");
+                return value != null ? value.toString() : null;
+            }
+        }
+        return null;
+    }
 
-        postRequest = new HttpPost(HOST+"/api/action/package_create");
+    private static Object getExtraKey(Object extra) {
+        return extra instanceof Map ? ((Map<?, ?>) extra).get("key") : null;
+    }
+
+    /**
+     * Call package_create. CKAN rejects a package whose name is in use with a validation error, the package is then
+     * considered created when any package with that name will do, or when it is marked with the same backup id:
+     * another client created it at the same time
+     * @param url Url of package_create
+     * @param reqEntity The package as JSON
+     * @param name Name of the package
+     * @param existingAccepted Whether an existing package with that name counts as created
+     * @param backupId Id of the backup the package is created for, or null
+     * @return true if the package was created or the one existing counts as created
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    private boolean postPackage(String url, StringEntity reqEntity, String name, boolean existingAccepted, String backupId) throws IOException {
+        HttpPost postRequest;
+        StringBuilder sb = new StringBuilder();
+        String line;
+
+        packages.invalidate(name.toLowerCase());
+        postRequest = new HttpPost(url);
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
+        int statusCode;
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            statusCode = response.getStatusLine().getStatusCode();
 
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        sb.append(statusCode);
-        sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
+            BufferedReader br = new BufferedReader(
+                    new InputStreamReader((response.getEntity().getContent())));
+            sb.append(statusCode);
             sb.append("\n");
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+                sb.append("\n");
+            }
         }
-        httpclient.close();
-        response.close();
 
+        if(statusCode==409 && sb.indexOf(NAME_IN_USE) >= 0){
+            if (existingAccepted) {
+                log.info("The package " + name + " already exists");
+                return true;
+            }
+            if (backupId != null && backupId.equals(getBackupId(getPackageByName(name)))) {
+                log.info("The package " + name + " was already created for the same backup");
+                return true;
+            }
+            log.error("The name of the package " + name + " is in use");
+            return false;
+        }
         if(statusCode!=200){
             log.error("statusCode =!=" +statusCode);
-
+            log.error("Error creating the package via CKAN API. Package id: "+name);
             log.error(sb);
+            return false;
         }
-        else {
-            log.info("Request returns statusCode 200: OK");
-            log.info(sb);
-        }
+        log.info("Request returns statusCode 200: OK");
+        log.info(sb);
+        return true;
     }
 
     /**
-     * Method that checks if the organization with organization_id stored in the object variable exists or not
+     * Method that checks if the organization with organization_id exists or not
+     * @param organization_id Id of the organization to check the existence of
      * @return boolean-> true if exists, false otherwise
      * @throws IOException Exception parsing the result message or closing the connection
      */
-    public boolean organizationExists() throws IOException{
+    public boolean organizationExists(String organization_id) throws IOException{
+        organization_id = organization_id.toLowerCase();
+        if (organizations.get(organization_id) != null) {
+            return true;
+        }
         String line;
         StringBuilder sb = new StringBuilder();
         HttpPost postRequest;
@@ -328,23 +531,23 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
+        int statusCode;
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            statusCode = response.getStatusLine().getStatusCode();
 
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
+            BufferedReader br = new BufferedReader(
+                    new InputStreamReader((response.getEntity().getContent())));
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+                sb.append("\n");
+            }
         }
-        httpclient.close();
-        response.close();
 
         if(statusCode==200)
         {
             log.info("Organization with id "+organization_id+" exists");
             log.info(sb);
+            organizations.put(organization_id, Boolean.TRUE);
             return true;
         }else{
             log.warn("Organization with id "+organization_id+" not found");
@@ -354,10 +557,12 @@ public class CKAN_API_Handler {
     }
 
     /**
-     * Method to create a new organization with the organization_id stored in the object
+     * Method to create a new organization with the organization_id
+     * @param organization_id Id, name and title of the organization to be created
      * @throws IOException Exception parsing the result message or closing the connection
      */
-    public void createOrganization() throws IOException{
+    public void createOrganization(String organization_id) throws IOException{
+        organization_id = organization_id.toLowerCase();
 
         HttpPost postRequest;
         StringBuilder sb = new StringBuilder();
@@ -369,24 +574,24 @@ public class CKAN_API_Handler {
                 .addPart("title", new StringBody(organization_id, ContentType.TEXT_PLAIN))
                 .build();
 
+        organizations.invalidate(organization_id);
         postRequest = new HttpPost(HOST + "/api/action/organization_create");
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
+        int statusCode;
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            statusCode = response.getStatusLine().getStatusCode();
 
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        sb.append(statusCode);
-        sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
+            BufferedReader br = new BufferedReader(
+                    new InputStreamReader((response.getEntity().getContent())));
+            sb.append(statusCode);
             sb.append("\n");
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+                sb.append("\n");
+            }
         }
-        httpclient.close();
-        response.close();
 
         if (statusCode != 200) {
             log.error("statusCode =!=" + statusCode);
@@ -399,29 +604,165 @@ public class CKAN_API_Handler {
 
     /**
      * Method to upload a resource previously created with the new id specified in resourceFileName, to a dataset with id dataset_name
+     * The resource is downloaded, with a connection of the pool, to a file of tempFileStore, deleted once the upload ends.
      * @param resource Resource previously created or gotten from the API
      * @param dataset_name Id of the dataset to upload the resource to
      * @param resourceFileName New name of the resource
-     * @throws IOException Exception parsing the result message, getting the file in the resource or closing the connection
+     * @param tempFileStore Store of the file where the resource is downloaded
+     * @return true if CKAN created the resource, false otherwise
+     * @throws IOException Exception parsing the result message, getting the file in the resource, storing it (e.g. when
+     * the store has no room left for it) or closing the connection
      */
-    public void uploadFilePojo(Resource resource, String dataset_name, String resourceFileName) throws IOException {
+    public boolean uploadFilePojo(Resource resource, String dataset_name, String resourceFileName, TempFileStore tempFileStore) throws IOException {
+
+        //The size given by CKAN is just a hint, the room taken in the store grows with the bytes downloaded
+        long expectedSize = resource.getSize() instanceof Number ? ((Number) resource.getSize()).longValue() : -1;
+        try (TempFileStore.TempFile tempFile = tempFileStore.create(resourceFileName, expectedSize)) {
+            boolean downloaded = downloadFilePojo(resource, in -> {
+                try (OutputStream out = tempFile.openOutputStream()) {
+                    IOUtils.copy(in, out);
+                }
+            });
+            if (!downloaded) {
+                return false;
+            }
 
-        URL url = new URL(resource.getUrl());
-        String tDir = System.getProperty("java.io.tmpdir");
-        String path = tDir + "/"+resourceFileName;
-        File file = new File(path);
-        file.deleteOnExit();
-        FileUtils.copyURLToFile(url, file);
+            return uploadFilePojo(resource, dataset_name, resourceFileName, tempFile.getFile(), null);
+        }
+    }
 
+    /**
+     * Create a copy of a resource in a dataset, uploading the file of the resource already stored locally
+     * @param resource Resource previously created or gotten from the API
+     * @param dataset_name Id of the dataset to upload the resource to
+     * @param resourceFileName New name of the resource
+     * @param file Local copy of the file of the resource
+     * @param hash Hash of the file to store in the new resource, null if unknown
+     * @return true if CKAN created the resource, false otherwise
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public boolean uploadFilePojo(Resource resource, String dataset_name, String resourceFileName, File file, String hash) throws IOException {
         ContentBody cbFile = new FileBody(file, ContentType.TEXT_HTML);
-        HttpPost postRequest;
 
+        MultipartEntityBuilder multipart = addContent(resourceCreateMultipart(resource, dataset_name, resourceFileName), cbFile);
+        return postResourceCreate(addHash(multipart, hash != null ? new StringBody(hash, ContentType.TEXT_PLAIN) : null).build());
+    }
+
+    /**
+     * Copy a resource to a dataset, streaming it from its url into the upload request without storing it locally.
+     * Only the bytes of the read buffer are kept in memory. The download and the upload each use a connection of
+     * the pool at the same time.
+     * @param resource Resource previously created or gotten from the API
+     * @param dataset_name Id of the dataset to upload the resource to
+     * @param resourceFileName New name of the resource
+     * @param bufferSize Size in bytes of the buffer between the download and the upload
+     * @return true if CKAN created the resource, false otherwise
+     * @throws IOException Exception downloading the resource, parsing the result message or closing the connection
+     */
+    public boolean copyFilePojoStreaming(Resource resource, String dataset_name, String resourceFileName, int bufferSize) throws IOException {
+
+        try (CloseableHttpResponse download = httpclient.execute(resourceRequest(resource))) {
+            int downloadStatus = download.getStatusLine().getStatusCode();
+            HttpEntity source = download.getEntity();
+            if (downloadStatus != 200 || source == null) {
+                log.error("Error downloading the resource " + resource.getUrl() + ". statusCode =!=" + downloadStatus);
+                EntityUtils.consume(source);
+                return false;
+            }
+
+            ContentType contentType = ContentType.get(source);
+            if (contentType == null) {
+                contentType = ContentType.APPLICATION_OCTET_STREAM;
+            }
+            InputStream in = new BufferedInputStream(source.getContent(), bufferSize);
+            //The stream can only be read once, so it is sent just in the upload part
+            ContentBody cbStream = new SizedInputStreamBody(in, contentType, resourceFileName, source.getContentLength());
+
+            return postResourceCreate(addContent(resourceCreateMultipart(resource, dataset_name, resourceFileName), cbStream).build());
+        }
+    }
+
+    /**
+     * Download the file of a resource, passing its content to callback as it is received
+     * @param resource Resource previously created or gotten from the API
+     * @param callback Receives the content of the file, only when the download succeeds
+     * @return true if the file was downloaded, false otherwise
+     * @throws IOException Exception downloading the file, or thrown by the callback
+     */
+    public boolean downloadFilePojo(Resource resource, ContentCallback callback) throws IOException {
+        try (CloseableHttpResponse download = httpclient.execute(resourceRequest(resource))) {
+            int downloadStatus = download.getStatusLine().getStatusCode();
+            HttpEntity source = download.getEntity();
+            if (downloadStatus != 200 || source == null) {
+                log.error("Error downloading the resource " + resource.getUrl() + ". statusCode =!=" + downloadStatus);
+                EntityUtils.consume(source);
+                return false;
+            }
+            try (InputStream in = source.getContent()) {
+                callback.process(in);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Serialize a package with the same codec used to talk to the API
+     * @param dataset Package gotten from the API
+     * @return JSON of the package, as CKAN returns it
+     */
+    public String packageToJson(Package_ dataset) {
+        return gson.toJson(dataset);
+    }
+
+    /**
+     * Build the request downloading the file of a resource
+     */
+    private HttpGet resourceRequest(Resource resource) {
+        HttpGet getRequest = new HttpGet(resource.getUrl());
+        //Only send the API key when the resource is stored in this CKAN instance
+        if (resource.getUrl().startsWith(HOST)) {
+            getRequest.setHeader("X-CKAN-API-Key", api_key);
+        }
+        return getRequest;
+    }
+
+    /**
+     * Create a resource in a dataset that links to the file of an existing resource instead of holding a copy of it.
+     * Nothing is downloaded or uploaded, the new resource keeps the url, and the hash when known, of the original one.
+     * @param resource Resource previously created or gotten from the API
+     * @param dataset_name Id of the dataset to create the resource in
+     * @param resourceFileName New name of the resource
+     * @return true if CKAN created the resource, false otherwise
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public boolean linkFilePojo(Resource resource, String dataset_name, String resourceFileName) throws IOException {
+        if (resource.getUrl() == null) {
+            log.error("The resource " + resource.getName() + " has no url to link to");
+            return false;
+        }
+        return postResourceCreate(linkEntity(resource, dataset_name, resourceFileName));
+    }
+
+    /**
+     * Body of the resource_create of a resource linking to the file of an existing resource, shared with CKAN_Async_API_Handler
+     */
+    static HttpEntity linkEntity(Resource resource, String dataset_name, String resourceFileName) {
+        MultipartEntityBuilder multipart = resourceCreateMultipart(resource, dataset_name, resourceFileName);
+        if (resource.getHash() != null && !resource.getHash().isEmpty()) {
+            multipart.addPart("hash", new StringBody(resource.getHash(), ContentType.TEXT_PLAIN));
+        }
+        return multipart.build();
+    }
+
+    /**
+     * Build the fields of a resource_create request copying the metadata of an existing resource.
+     * The builders of the requests are public so the benchmarks measure the entities the handler sends
+     */
+    public static MultipartEntityBuilder resourceCreateMultipart(Resource resource, String dataset_name, String resourceFileName) {
         MultipartEntityBuilder multipart = MultipartEntityBuilder.create()
-                .addPart("file", cbFile)
                 .addPart("key", new StringBody(resourceFileName.split("\\.")[0],ContentType.TEXT_PLAIN))
                 .addPart("name", new StringBody(resourceFileName,ContentType.TEXT_PLAIN))
-                .addPart("package_id",new StringBody(dataset_name,ContentType.TEXT_PLAIN))
-                .addPart("upload",cbFile);
+                .addPart("package_id",new StringBody(dataset_name,ContentType.TEXT_PLAIN));
         if(resource.getUrl() != null){
             multipart.addPart("url",new StringBody(resource.getUrl(),ContentType.TEXT_PLAIN));
         }
@@ -436,211 +777,389 @@ public class CKAN_API_Handler {
         {
             multipart.addPart("mimetype",new StringBody(resource.getMimetype().toString(),ContentType.TEXT_PLAIN));
         }
-        HttpEntity reqEntity = multipart.build();
+        return multipart;
+    }
+
+    /**
+     * Send a resource_create request
+     * @return true if CKAN created the resource, false otherwise
+     */
+    private boolean postResourceCreate(HttpEntity reqEntity) throws IOException {
+        HttpPost postRequest;
 
         postRequest = new HttpPost(HOST+"/api/3/action/resource_create");
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
+        int statusCode;
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            statusCode = response.getStatusLine().getStatusCode();
 
-        String line;
-        StringBuilder sb = new StringBuilder();
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-        }
-        if(statusCode!=200){
-            log.error("statusCode =!=" +statusCode);
-            log.error(sb.toString());
+            String line;
+            StringBuilder sb = new StringBuilder();
+            BufferedReader br = new BufferedReader(
+                    new InputStreamReader((response.getEntity().getContent())));
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+            }
+            if(statusCode!=200){
+                log.error("statusCode =!=" +statusCode);
+                log.error(sb.toString());
+            }
+            else log.info("Request returns statusCode 200: OK");
         }
-        else log.info("Request returns statusCode 200: OK");
-        response.close();
-        httpclient.close();
+        return statusCode==200;
     }
 
-    public Boolean createOrUpdateResource(String path) throws IOException {
+    /**
+     * Upload a file to a package, updating the resource with the same name if the package already has it
+     * @param path Local filesystem path of the file to upload
+     * @param package_id Name of the package to upload the file to
+     * @return true when CKAN accepted the file
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public Boolean createOrUpdateResource(String path, String package_id) throws IOException {
+        return createOrUpdateResource(path, package_id, null) != UploadResult.FAILED;
+    }
+
+    /**
+     * Upload a file to a package, updating the resource with the same name if the package already has it.
+     * When the hash of the file is given, it is stored in the resource, and the upload is skipped if the resource
+     * already has the same hash and size.
+     * @param path Local filesystem path of the file to upload
+     * @param package_id Name of the package to upload the file to
+     * @param hash SHA-256 of the file, as lowercase hex, or null to always upload the file
+     * @return What was done with the file
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public UploadResult createOrUpdateResource(String path, String package_id, String hash) throws IOException {
         File file = new File(path);
-        String filename = file.getName().replaceAll("[^\\.a-zA-Z0-9]+","_");
-        HttpPost postRequest;
-        StringBuilder sb = new StringBuilder();
-        String line;
+        return createOrUpdateResource(file.getName(), new FileBody(file, ContentType.TEXT_HTML), file.length(), package_id, hash, null);
+    }
 
-        Gson gson = new Gson();
+    /**
+     * Upload the content of a stream to a package, updating the resource with the same name if the package already has it.
+     * The stream is sent as it is read, without being stored locally, so it is read only once.
+     * @param content Stream with the content of the file
+     * @param contentLength Number of bytes of the stream, -1 if unknown
+     * @param fileName Name of the file
+     * @param package_id Name of the package to upload the file to
+     * @return true when CKAN accepted the file
+     * @throws IOException Exception reading the stream, parsing the result message or closing the connection
+     */
+    public Boolean createOrUpdateResource(InputStream content, long contentLength, String fileName, String package_id) throws IOException {
+        return createOrUpdateResource(content, contentLength, fileName, package_id, null) != UploadResult.FAILED;
+    }
 
-        //query the API to get the resources with that file name
-        postRequest = new HttpPost(HOST+"/api/action/resource_search?query=name:"+filename);
-        postRequest.setHeader("X-CKAN-API-Key", api_key);
+    /**
+     * Upload the content of a stream to a package, updating the resource with the same name if the package already has it.
+     * When the hash of the content is given, it is stored in the resource, and the upload is skipped, without reading
+     * the stream, if the resource already has the same hash and size.
+     * @param content Stream with the content of the file
+     * @param contentLength Number of bytes of the stream, -1 if unknown
+     * @param fileName Name of the file
+     * @param package_id Name of the package to upload the file to
+     * @param hash SHA-256 of the content, as lowercase hex, or null to always upload the content
+     * @return What was done with the content
+     * @throws IOException Exception reading the stream, parsing the result message or closing the connection
+     */
+    public UploadResult createOrUpdateResource(InputStream content, long contentLength, String fileName, String package_id, String hash) throws IOException {
+        return createOrUpdateResource(fileName, new SizedInputStreamBody(content, ContentType.TEXT_HTML, fileName, contentLength), contentLength, package_id, hash, null);
+    }
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-        }
-        httpclient.close();
-        response.close();
-
-        //Parse the response into a POJO to be able to get results from it.
-        ResourceResponse resResponse = gson.fromJson(sb.toString(),ResourceResponse.class);
-        System.out.println(resResponse);
-
-        String resource_packageId;
-        String id;
-        //This is needed to check that the resource belongs to the current package
-        Package_ foundPackage = getPackageByName(package_id);
-        String foundPackageId = "Not_found";
-        if(foundPackage!=null)
-        {
-            foundPackageId = foundPackage.getId();
-        }
+    /**
+     * Upload the content of a stream to a package, updating the resource with the same name if the package already has it.
+     * The SHA-256 of the content is computed while it is sent, and stored in the resource, so the stream is read only once.
+     * The upload is never skipped: {@link #mayBeUnchanged(String, String, long)} tells when the hash is needed beforehand.
+     * @param content Stream with the content of the file
+     * @param contentLength Number of bytes of the stream, -1 if unknown
+     * @param fileName Name of the file
+     * @param package_id Name of the package to upload the file to
+     * @return What was done with the content
+     * @throws IOException Exception reading the stream, parsing the result message or closing the connection
+     */
+    public UploadResult createOrUpdateResourceHashing(InputStream content, long contentLength, String fileName, String package_id) throws IOException {
+        DigestBody digest = new DigestBody();
+        ContentBody body = new SizedInputStreamBody(digest.hashing(content), ContentType.TEXT_HTML, fileName, contentLength);
+        return createOrUpdateResource(fileName, body, contentLength, package_id, null, digest);
+    }
 
-        //Now we need to check if the count of results is 1 (otherwise error)
-        //if the count is 0, call uploadFile to create the file
-        if(resResponse.getResult().getCount()==0)
-        {
-            log.info("No resource found under that name, creating it...");
-            uploadFile(path);
-            return true;
-            //if the count is 1, get all the needed data to update the resource
-        }else if(resResponse.getResult().getCount()==1)
+    /**
+     * Tell whether a file may already be stored in a package with the same content, which is only possible when the package
+     * has a resource with the same name, a hash and the same size. Otherwise the file has to be uploaded whatever its hash.
+     * The package is looked up as for an upload, so with the metadata cache the upload that follows needs no other lookup.
+     * @param fileName Name of the file
+     * @param package_id Name of the package the file is uploaded to
+     * @param size Number of bytes of the file, -1 if unknown
+     * @return true if the hash of the file is needed to know whether it has to be uploaded
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    public boolean mayBeUnchanged(String fileName, String package_id, long size) throws IOException {
+        PackageResources foundPackage = getPackageResources(package_id.toLowerCase());
+        PackageResources.ResourceState resource = foundPackage != null ? foundPackage.getResource(fileName) : null;
+        return resource != null && resource.mayHaveContent(size);
+    }
+
+    /**
+     * @param hash Hash to store in the resource, null if unknown or computed by digest
+     * @param digest Computes the hash of the content while it is sent, null if not needed
+     */
+    private UploadResult createOrUpdateResource(String fileName, ContentBody content, long size, String package_id, String hash,
+                                                DigestBody digest) throws IOException {
+        package_id = package_id.toLowerCase();
+        final ContentBody hashBody = digest != null ? digest : hash != null ? new StringBody(hash, ContentType.TEXT_PLAIN) : null;
+
+        //One lookup of the package gives all its resources, the one with the same name is looked for locally
+        PackageResources foundPackage = getPackageResources(package_id);
+        PackageResources.ResourceState resource = foundPackage != null ? foundPackage.getResource(fileName) : null;
+
+        if(resource == null)
         {
-            resource_packageId = resResponse.getResult().getResults().get(0).getPackageId();
-            id = resResponse.getResult().getResults().get(0).getId();
-            //If the resource's package_id is the same as the current package id (search for package by name and get the id)
-            if( foundPackage != null && resource_packageId.equals(foundPackageId)) {
-                log.info("Resource found in the current package, updating it");
-                updateFile(path, id);
-                return true;
-            }else{
-                //If no package is found(cannot happen because the resource must belong to a package) or the package is different than the current one
-                log.warn("The found resource does not belong to the current package");
-                log.warn("Current package id found:"+foundPackageId+". Package expected:"+resource_packageId);
-                log.warn("Creating the resource in the current package");
-                uploadFile(path);
-                return true;
+            log.info("No resource found under that name in the package, creating it...");
+            Resource created = uploadFile(fileName, content, package_id, hashBody);
+            if (created == null) {
+                //The package may have been deleted since it was cached
+                packages.invalidate(package_id);
+                return UploadResult.FAILED;
             }
-        }else{
-            // Iterate over all the resources, checking if any of them belongs to the current package
-            // If any belongs, update it
-            // If none belongs, create the resource in the current package
-
-            boolean isPackageFound = false;
-            for(Result_ result: resResponse.getResult().getResults())
-            {
-                resource_packageId = result.getPackageId();
-                id = result.getId();
-                //This is needed to check that the resource belongs to the current package
-                foundPackage = getPackageByName(package_id);
-                foundPackageId = "Not_found";
-                if(foundPackage!=null)
-                {
-                    foundPackageId = foundPackage.getId();
-                }
-                if( foundPackage != null && resource_packageId.equals(foundPackageId)) {
-                    log.info("Resource found in the current package, updating it");
-                    updateFile(path, id);
-                    isPackageFound = true;
-                }
-            }
-            if(!isPackageFound)
-            {
-                log.warn("None of the found resources belongs to the current package");
-                log.warn("Creating the resource in the current package");
-                uploadFile(path);
+            //Keep the new resource in the cached package, so the next upload of the file updates it without a lookup
+            if (foundPackage != null && created.getId() != null) {
+                String createdHash = digest != null ? digest.getHash() : hash;
+                foundPackage.add(created.getName() != null ? created.getName() : fileName, new PackageResources.ResourceState(created.getId(), createdHash, size));
+            } else {
+                packages.invalidate(package_id);
             }
-            return true;
+            return UploadResult.CREATED;
         }
+        if(resource.hasContent(hash, size))
+        {
+            log.info("Resource found in the current package with the same content, skipping the upload");
+            return UploadResult.UNCHANGED;
+        }
+        log.info("Resource found in the current package, updating it");
+        if(!updateFile(content, resource.id, hashBody))
+        {
+            return UploadResult.FAILED;
+        }
+        //Keep the cached package in line with the new content of the resource
+        foundPackage.update(fileName, new PackageResources.ResourceState(resource.id, digest != null ? digest.getHash() : hash, size));
+        return UploadResult.UPDATED;
     }
 
     /**
-     * Update the file stored in the resource with id resourceId
-     * @param path Local path of the file to upload to the resource
+     * Replace the file of an existing resource
+     * @param package_id Name of the package of the resource, forgotten by the cache as its resource changes
      * @param resourceId Id of the resource to upload the file to
+     * @param path Local filesystem path of the file to upload
+     * @param hash SHA-256 of the file, as lowercase hex, or null if unknown
+     * @return true if CKAN updated the resource
      * @throws IOException Exception parsing the result message or closing the connection
      */
-    private void updateFile(String path, String resourceId) throws IOException {
+    public boolean patchResource(String package_id, String resourceId, String path, String hash) throws IOException {
         File file = new File(path);
+        packages.invalidate(package_id.toLowerCase());
+        return updateFile(new FileBody(file, ContentType.TEXT_HTML), resourceId, hash != null ? new StringBody(hash, ContentType.TEXT_PLAIN) : null);
+    }
 
+    /**
+     * Update the file stored in the resource with id resourceId
+     * @param content Content of the file to upload to the resource
+     * @param resourceId Id of the resource to upload the file to
+     * @param hash Hash of the content to store in the resource, null if unknown
+     * @return true if CKAN updated the resource
+     * @throws IOException Exception parsing the result message or closing the connection
+     */
+    private boolean updateFile(ContentBody content, String resourceId, ContentBody hash) throws IOException {
         HttpPost postRequest;
-        ContentBody cbFile = new FileBody(file, ContentType.TEXT_HTML);
-        HttpEntity reqEntity = MultipartEntityBuilder.create()
-                .addPart("id",new StringBody(resourceId,ContentType.TEXT_PLAIN))
-                .addPart("file", cbFile)
-                .addPart("upload",cbFile)
-                .build();
+        MultipartEntityBuilder multipart = MultipartEntityBuilder.create()
+                .addPart("id",new StringBody(resourceId,ContentType.TEXT_PLAIN));
+        HttpEntity reqEntity = addHash(addContent(multipart, content), hash).build();
 
         postRequest = new HttpPost(HOST+"/api/action/resource_patch");
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        httpclient.close();
-        response.close();
+        int statusCode;
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            statusCode = response.getStatusLine().getStatusCode();
+            //Consume the body so the connection can go back to the pool
+            EntityUtils.consume(response.getEntity());
+        }
 
         if(statusCode!=200){
             log.error("statusCode =!=" +statusCode);
         }
         else log.info("Request returns statusCode 200: OK");
+        return statusCode==200;
     }
 
     /**
      * Function that uploads a file to CKAN through it's API
-     * @param path Local filesystem path of the file to upload
+     * @param fileName Name of the file to upload
+     * @param content Content of the file to upload
+     * @param package_id Name of the package to upload the file to
+     * @param hash Hash of the content to store in the resource, null if unknown
+     * @return The resource created by CKAN, null if it was not created
      * @throws IOException Exception parsing the result message or closing the connection
      */
-    private void uploadFile(String path) throws IOException {
-        File file = new File(path);
-        SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyyMMdd_HHmmss");
-        String date=dateFormatGmt.format(new Date());
+    private Resource uploadFile(String fileName, ContentBody content, String package_id, ContentBody hash) throws IOException {
         StringBuilder sb = new StringBuilder();
         String line;
 
         HttpPost postRequest;
-        ContentBody cbFile = new FileBody(file, ContentType.TEXT_HTML);
-        HttpEntity reqEntity = MultipartEntityBuilder.create()
-                .addPart("file", cbFile)
-                .addPart("key", new StringBody(file.getName().split("\\.")[0],ContentType.TEXT_PLAIN))
-                .addPart("name", new StringBody(file.getName(),ContentType.TEXT_PLAIN))
-                .addPart("url",new StringBody("testURL",ContentType.TEXT_PLAIN))
-                .addPart("package_id",new StringBody(package_id,ContentType.TEXT_PLAIN))
-                .addPart("upload",cbFile)
-                .addPart("description",new StringBody(file.getName()+" created on: "+date,ContentType.TEXT_PLAIN))
-                .build();
+        HttpEntity reqEntity = addHash(addContent(resourceUploadMultipart(fileName, package_id), content), hash).build();
 
         postRequest = new HttpPost(HOST+"/api/action/resource_create");
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
+        int statusCode;
+        Resource created = null;
+        try (CloseableHttpResponse response = httpclient.execute(postRequest)) {
+            statusCode = response.getStatusLine().getStatusCode();
 
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        sb.append(statusCode);
-        sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
+            if (statusCode == 200) {
+                created = CkanResponseReader.readResource(response.getEntity().getContent(), gson);
+                EntityUtils.consume(response.getEntity());
+            } else {
+                BufferedReader br = new BufferedReader(
+                        new InputStreamReader((response.getEntity().getContent())));
+                sb.append(statusCode);
+                sb.append("\n");
+                while ((line = br.readLine()) != null) {
+                    sb.append(line);
+                    sb.append("\n");
+                }
+            }
         }
-        httpclient.close();
-        response.close();
 
         if(statusCode!=200){
-            log.error("Error creating a resource: "+ file.getName().split("\\.")[0] +"in package:"+package_id);
+            log.error("Error creating a resource: "+ fileName.split("\\.")[0] +"in package:"+package_id);
             log.error("statusCode =!=" +statusCode);
             log.error(sb);
+            return null;
         }
-        else log.info("Request returns statusCode 200: OK");
+        log.info("Request returns statusCode 200: OK");
+        //CKAN answered without the resource, it was created all the same
+        return created != null ? created : new Resource();
     }
 
+    /**
+     * Build the fields of a resource_create request uploading a new file
+     * @param fileName Name of the file
+     * @param package_id Name of the package to upload the file to
+     */
+    public static MultipartEntityBuilder resourceUploadMultipart(String fileName, String package_id) {
+        SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        String date=dateFormatGmt.format(new Date());
+        return MultipartEntityBuilder.create()
+                .addPart("key", new StringBody(fileName.split("\\.")[0],ContentType.TEXT_PLAIN))
+                .addPart("name", new StringBody(fileName,ContentType.TEXT_PLAIN))
+                .addPart("url",new StringBody("testURL",ContentType.TEXT_PLAIN))
+                .addPart("package_id",new StringBody(package_id,ContentType.TEXT_PLAIN))
+                .addPart("description",new StringBody(fileName+" created on: "+date,ContentType.TEXT_PLAIN));
+    }
+
+    /**
+     * Add the content of the file to a resource_create or resource_patch request.
+     * A file is sent in the file and upload parts, a stream can only be read once so it is just sent in the upload part
+     */
+    public static MultipartEntityBuilder addContent(MultipartEntityBuilder multipart, ContentBody content) {
+        if (content instanceof FileBody) {
+            multipart.addPart("file", content);
+        }
+        return multipart.addPart("upload", content);
+    }
+
+    /**
+     * Add the hash of the file to a resource_create or resource_patch request, after the content since a
+     * {@link DigestBody} is only known once the content has been sent
+     */
+    public static MultipartEntityBuilder addHash(MultipartEntityBuilder multipart, ContentBody hash) {
+        return hash != null ? multipart.addPart("hash", hash) : multipart;
+    }
+
+    /**
+     * Ids and content of the resources of a package, by resource name
+     */
+    private static final class PackageResources {
+        private final Map<String, ResourceState> resources = new ConcurrentHashMap<>();
+
+        private PackageResources(Package_ found) {
+            if (found.getResources() != null) {
+                for (Resource resource : found.getResources()) {
+                    //The first resource with a name is the one updated
+                    if (resource.getName() != null && !resources.containsKey(resource.getName())) {
+                        long size = resource.getSize() instanceof Number ? ((Number) resource.getSize()).longValue() : -1;
+                        resources.put(resource.getName(), new ResourceState(resource.getId(), resource.getHash(), size));
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The resource named as the file, or as the file with the characters not accepted by CKAN replaced, null if none
+         */
+        private ResourceState getResource(String fileName) {
+            ResourceState resource = resources.get(fileName);
+            if (resource == null) {
+                resource = resources.get(fileName.replaceAll("[^\\.a-zA-Z0-9]+","_"));
+            }
+            return resource;
+        }
+
+        /**
+         * Add a resource created in the package, unless an older resource with that name is already the one updated
+         */
+        private void add(String name, ResourceState resource) {
+            resources.putIfAbsent(name, resource);
+        }
+
+        private void update(String fileName, ResourceState resource) {
+            if (resources.containsKey(fileName)) {
+                resources.put(fileName, resource);
+            } else {
+                resources.put(fileName.replaceAll("[^\\.a-zA-Z0-9]+","_"), resource);
+            }
+        }
+
+        private static final class ResourceState {
+            private final String id;
+            private final String hash;
+            private final long size;
+
+            private ResourceState(String id, String hash, long size) {
+                this.id = id;
+                this.hash = hash;
+                this.size = size;
+            }
+
+            /**
+             * Tell whether a file could be this resource unchanged, before its hash is computed: the resource must have a hash,
+             * CKAN gives an empty one when unknown, and a size matching the one of the file when both are known
+             * @param size Number of bytes of the file, -1 if unknown
+             * @return true if only the hash of the file can tell whether it is unchanged
+             */
+            private boolean mayHaveContent(long size) {
+                return hash != null && !hash.isEmpty() && (this.size < 0 || size < 0 || this.size == size);
+            }
+
+            /**
+             * @return true if the resource is known to hold a content with that hash and size
+             */
+            private boolean hasContent(String hash, long size) {
+                if (hash == null || this.hash == null || !this.hash.equalsIgnoreCase(hash)) {
+                    return false;
+                }
+                //CKAN does not always know the size, the hash is enough then
+                return this.size < 0 || size < 0 || this.size == size;
+            }
+        }
+    }
+
+    /**
+     * Close the http client, releasing every pooled connection of this handler
+     */
     public void close()
     {
         try {
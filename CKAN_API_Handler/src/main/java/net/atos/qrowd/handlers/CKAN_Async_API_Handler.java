@@ -0,0 +1,194 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import com.google.gson.Gson;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.pojos.adapters.CkanGson;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking client of the CKAN API, for the calls whose requests and responses are small: looking packages up and
+ * linking resources. Each call returns at once with a CompletableFuture, completed when CKAN answers, or completed
+ * exceptionally with the IOException of the call. The requests are multiplexed by a few I/O threads over a pool of
+ * keep-alive connections, so hundreds of calls can be in flight without a thread each, the ones beyond the size of the
+ * pool waiting for a connection in the client. The futures are completed by the I/O threads, the stages added to them
+ * must not block, or be added with the async methods of CompletableFuture.
+ * Uploads and downloads of files stream their content, they are left to CKAN_API_Handler.
+ */
+public class CKAN_Async_API_Handler {
+    private final Logger log = Logger.getLogger(CKAN_Async_API_Handler.class);
+
+    //Shared, thread-safe codec of the pojos
+    private static final Gson gson = CkanGson.get();
+
+    private final String HOST;
+    private final String api_key;
+    private final CloseableHttpAsyncClient httpclient;
+
+    /**
+     * Start the client, with its I/O threads, released when calling close()
+     * @param HOST Base url of the CKAN instance
+     * @param api_key Api Key to be used to interact with CKAN
+     * @param poolSettings Size of the pool and timeouts of the connections
+     * @throws IOException If the I/O threads cannot be started
+     */
+    public CKAN_Async_API_Handler(String HOST, String api_key, ConnectionPoolSettings poolSettings) throws IOException {
+        this.HOST = HOST;
+        this.api_key = api_key;
+
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setConnectTimeout(poolSettings.getConnectTimeout())
+                .setSoTimeout(poolSettings.getSocketTimeout())
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+        connectionManager.setMaxTotal(poolSettings.getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(poolSettings.getMaxConnectionsPerRoute());
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(poolSettings.getConnectTimeout())
+                .setConnectionRequestTimeout(poolSettings.getConnectTimeout())
+                .setSocketTimeout(poolSettings.getSocketTimeout())
+                .build();
+
+        this.httpclient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        this.httpclient.start();
+    }
+
+    /**
+     * @see CKAN_API_Handler#getPackageByName(String)
+     * @return Future of the package, with its resources, or of null if not found
+     */
+    public CompletableFuture<Package_> getPackageByNameAsync(String name) {
+        HttpPost postRequest = new HttpPost(HOST+"/api/3/action/package_search?q=name:"+name);
+        return execute(postRequest, response -> {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+            return CkanResponseReader.readSinglePackage(response.getEntity().getContent(), gson);
+        });
+    }
+
+    /**
+     * @see CKAN_API_Handler#packageExists(String)
+     */
+    public CompletableFuture<Boolean> packageExistsAsync(String name) {
+        return getPackageByNameAsync(name).thenApply(dataset -> dataset != null);
+    }
+
+    /**
+     * Create a resource in a dataset linking to the file of an existing resource
+     * @see CKAN_API_Handler#linkFilePojo(Resource, String, String)
+     * @return Future of true if CKAN accepted the new resource
+     */
+    public CompletableFuture<Boolean> linkResourceAsync(Resource resource, String dataset_name, String resourceFileName) {
+        if (resource.getUrl() == null) {
+            log.error("The resource " + resource.getName() + " has no url to link to");
+            return CompletableFuture.completedFuture(false);
+        }
+        HttpPost postRequest = new HttpPost(HOST+"/api/3/action/resource_create");
+        try {
+            //The parts are a few strings, they are sent from memory
+            HttpEntity multipart = CKAN_API_Handler.linkEntity(resource, dataset_name, resourceFileName);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            multipart.writeTo(body);
+            postRequest.setEntity(new ByteArrayEntity(body.toByteArray(), ContentType.parse(multipart.getContentType().getValue())));
+        } catch (IOException e) {
+            CompletableFuture<Boolean> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return execute(postRequest, response -> {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String result = EntityUtils.toString(response.getEntity());
+            if (statusCode != 200) {
+                log.error("statusCode =!=" + statusCode);
+                log.error(result);
+            }
+            return statusCode == 200;
+        });
+    }
+
+    /**
+     * Send a request, with the API key, and read its response once received in full
+     */
+    private <T> CompletableFuture<T> execute(HttpPost request, final ResponseReader<T> reader) {
+        request.setHeader("X-CKAN-API-Key", api_key);
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        httpclient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    future.complete(reader.read(response));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Stop the I/O threads and close the connections, the calls in flight fail
+     */
+    public void close()
+    {
+        try {
+            httpclient.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    /**
+     * Reads the response of a call, received in full
+     */
+    private interface ResponseReader<T> {
+        T read(HttpResponse response) throws IOException;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming parser of the CKAN API responses. The JSON is read token by token straight from the response stream,
+ * only the parts needed by the handler are turned into objects and everything else is skipped, so the memory used
+ * does not depend on the size of the response.
+ */
+public final class CkanResponseReader {
+
+    private CkanResponseReader() {
+    }
+
+    /**
+     * Read the response of a package_search call
+     * @param in Body of the response
+     * @param gson Gson used to bind the package found
+     * @return The package when the search returned exactly one, null otherwise
+     * @throws IOException Exception reading the response
+     */
+    public static Package_ readSinglePackage(InputStream in, Gson gson) throws IOException {
+        JsonReader reader = open(in);
+        if (!moveToResults(reader)) {
+            return null;
+        }
+        if (!reader.hasNext()) {
+            return null;
+        }
+        Package_ found = gson.fromJson(reader, Package_.class);
+        //More than one package means the name was not matched exactly
+        return reader.hasNext() ? null : found;
+    }
+
+    /**
+     * Read the packages of the response of a package_search call one by one, only one of them is held in memory at a time
+     * @param in Body of the response
+     * @param gson Gson used to bind the packages
+     * @param callback Receives each package
+     * @return Number of packages read
+     * @throws IOException Exception reading the response, or thrown by the callback
+     */
+    public static int readPackages(InputStream in, Gson gson, PackageCallback callback) throws IOException {
+        JsonReader reader = open(in);
+        if (!moveToResults(reader)) {
+            return 0;
+        }
+        int count = 0;
+        while (reader.hasNext()) {
+            Package_ found = gson.fromJson(reader, Package_.class);
+            callback.process(found);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Read the response of a resource_create or resource_patch call
+     * @param in Body of the response
+     * @param gson Gson used to bind the resource
+     * @return The resource created or updated, null if the response has none
+     * @throws IOException Exception reading the response
+     */
+    public static Resource readResource(InputStream in, Gson gson) throws IOException {
+        JsonReader reader = open(in);
+        if (!moveToResult(reader)) {
+            return null;
+        }
+        return gson.fromJson(reader, Resource.class);
+    }
+
+    /**
+     * Count the packages of the response of a package_search call, without binding them
+     * @param in Body of the response
+     * @param limit Stop counting once this number of packages is reached
+     * @return Number of packages found, never more than limit
+     * @throws IOException Exception reading the response
+     */
+    public static int countPackages(InputStream in, int limit) throws IOException {
+        JsonReader reader = open(in);
+        if (!moveToResults(reader)) {
+            return 0;
+        }
+        int count = 0;
+        while (count < limit && reader.hasNext()) {
+            reader.skipValue();
+            count++;
+        }
+        return count;
+    }
+
+    private static JsonReader open(InputStream in) {
+        return new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Move the reader to the value of the "result" field of a CKAN response
+     * @return true when positioned at the beginning of the result object, false if the response has no result
+     */
+    private static boolean moveToResult(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("result".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                return true;
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Move the reader inside the "results" array of the result of a search
+     * @return true when positioned at the first element of the array, false if the response has no results
+     */
+    private static boolean moveToResults(JsonReader reader) throws IOException {
+        if (!moveToResult(reader)) {
+            return false;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("results".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                return true;
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+}
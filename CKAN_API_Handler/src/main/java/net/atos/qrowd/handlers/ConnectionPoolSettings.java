@@ -0,0 +1,66 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+/**
+ * Settings of the pooled, keep-alive connection manager owned by a CKAN_API_Handler.
+ * Timeouts are expressed in milliseconds.
+ */
+public class ConnectionPoolSettings {
+
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+
+    public static final ConnectionPoolSettings DEFAULT = new ConnectionPoolSettings(
+            DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+
+    private final int maxTotalConnections;
+    private final int maxConnectionsPerRoute;
+    private final int connectTimeout;
+    private final int socketTimeout;
+
+    /**
+     *
+     * @param maxTotalConnections Maximum number of connections kept by the pool, for all the routes
+     * @param maxConnectionsPerRoute Maximum number of connections kept by the pool for a single host
+     * @param connectTimeout Timeout to establish a connection, and to lease one from the pool
+     * @param socketTimeout Maximum inactivity between two data packets of a response
+     */
+    public ConnectionPoolSettings(int maxTotalConnections, int maxConnectionsPerRoute, int connectTimeout, int socketTimeout) {
+        this.maxTotalConnections = maxTotalConnections;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the content of a file downloaded from CKAN, while the download is in progress
+ */
+public interface ContentCallback {
+
+    /**
+     * @param content Stream with the content, closed by the caller once this method returns
+     * @throws IOException Exception reading the content
+     */
+    void process(InputStream content) throws IOException;
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Multipart body with the SHA-256, as lowercase hex, of a stream sent in a previous part of the same request.
+ * The stream is hashed while that part is written, so its content is read only once, and this part must come after it.
+ */
+public class DigestBody extends AbstractContentBody {
+
+    //Length of a SHA-256 as hex
+    private static final int LENGTH = 64;
+
+    private final MessageDigest sha256;
+    private volatile String hash;
+
+    public DigestBody() {
+        super(ContentType.TEXT_PLAIN);
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param in Stream to hash
+     * @return Stream to send instead of in, hashing its content as it is read
+     */
+    public InputStream hashing(InputStream in) {
+        return new DigestInputStream(in, sha256);
+    }
+
+    /**
+     * @return The hash of the stream, null until this part has been written
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        hash = String.format("%064x", new BigInteger(1, sha256.digest()));
+        out.write(hash.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public String getFilename() {
+        return null;
+    }
+
+    @Override
+    public String getCharset() {
+        return StandardCharsets.US_ASCII.name();
+    }
+
+    @Override
+    public String getTransferEncoding() {
+        return MIME.ENC_8BIT;
+    }
+
+    @Override
+    public long getContentLength() {
+        return LENGTH;
+    }
+}
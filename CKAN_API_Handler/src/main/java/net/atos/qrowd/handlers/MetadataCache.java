@@ -0,0 +1,94 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe cache of the answers given by CKAN to metadata lookups, keyed by name.
+ * Entries expire after the time to live of the settings, and the least recently used entry is evicted
+ * when the cache holds the maximum number of entries.
+ * @param <V> Type of the cached values
+ */
+class MetadataCache<V> {
+
+    private final long timeToLiveNanos;
+    private final boolean enabled;
+    private final LinkedHashMap<String, Entry<V>> entries;
+
+    MetadataCache(MetadataCacheSettings settings) {
+        this.timeToLiveNanos = settings.getTimeToLive() * 1000000L;
+        this.enabled = settings.isEnabled();
+        final int maxEntries = settings.getMaxEntries();
+        //Access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The value cached for the key, null if there is none or it has expired
+     */
+    synchronized V get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.created > timeToLiveNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @return true if values are kept, false when the settings disable the cache
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized void put(String key, V value) {
+        if (enabled) {
+            entries.put(key, new Entry<>(value, System.nanoTime()));
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long created;
+
+        private Entry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
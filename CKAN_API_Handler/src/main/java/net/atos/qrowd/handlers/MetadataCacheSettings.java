@@ -0,0 +1,53 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+/**
+ * Settings of the cache of package and organization lookups kept by a CKAN_API_Handler.
+ * A cache with a time to live or a size of 0 is disabled, every lookup is sent to CKAN.
+ */
+public class MetadataCacheSettings {
+
+    public static final long DEFAULT_TIME_TO_LIVE = 300000;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    public static final MetadataCacheSettings DISABLED = new MetadataCacheSettings(0, 0);
+
+    private final long timeToLive;
+    private final int maxEntries;
+
+    /**
+     *
+     * @param timeToLive Time in milliseconds a lookup is kept after asking CKAN for it
+     * @param maxEntries Maximum number of lookups kept, the least recently used is evicted when full
+     */
+    public MetadataCacheSettings(long timeToLive, int maxEntries) {
+        this.timeToLive = timeToLive;
+        this.maxEntries = maxEntries;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public boolean isEnabled() {
+        return timeToLive > 0 && maxEntries > 0;
+    }
+}
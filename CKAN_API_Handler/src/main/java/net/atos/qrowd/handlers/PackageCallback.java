@@ -0,0 +1,32 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import net.atos.qrowd.pojos.Package_;
+
+import java.io.IOException;
+
+/**
+ * Receives the packages of a search, one at a time, while the response is read
+ */
+public interface PackageCallback {
+
+    /**
+     * @param dataset Package found, with its resources
+     * @throws IOException Exception handling the package, stops reading the search
+     */
+    void process(Package_ dataset) throws IOException;
+}
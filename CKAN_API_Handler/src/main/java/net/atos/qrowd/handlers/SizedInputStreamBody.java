@@ -0,0 +1,47 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.InputStreamBody;
+
+import java.io.InputStream;
+
+/**
+ * Multipart body written straight from a stream. Unlike InputStreamBody it reports the length of the content
+ * when it is known, so the request is sent with a Content-Length instead of chunked.
+ * The stream can only be written once.
+ */
+public class SizedInputStreamBody extends InputStreamBody {
+
+    private final long contentLength;
+
+    /**
+     * @param in Stream with the content of the body
+     * @param contentType Content type of the part
+     * @param filename Name of the file of the part
+     * @param contentLength Number of bytes of the stream, -1 if unknown
+     */
+    public SizedInputStreamBody(InputStream in, ContentType contentType, String filename, long contentLength) {
+        super(in, contentType, filename);
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory holding the files that need to be stored locally while they are sent to CKAN.
+ * Each file is created in its own subdirectory, so files with the same name can be used at the same time, and it
+ * is deleted as soon as it is closed. The store never holds more than maxSize bytes: the size of a file is reserved
+ * when it is created, or while it is written through {@link TempFile#openOutputStream()} when it is not known, and
+ * released when it is deleted.
+ * The directory belongs to the store, anything left in it by a previous run is deleted when the store is created.
+ */
+public class TempFileStore {
+    private final Logger log = Logger.getLogger(TempFileStore.class);
+
+    private final File directory;
+    private final long maxSize;
+    private final AtomicLong usedSize = new AtomicLong();
+
+    /**
+     * Create the store, creating its directory or removing the files left in it
+     * @param directory Directory only used by this store
+     * @param maxSize Maximum number of bytes of all the files stored at the same time
+     * @throws IOException Exception creating or cleaning the directory
+     */
+    public TempFileStore(File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (directory.isDirectory()) {
+            //Orphans of a previous run, e.g. if NiFi was killed while uploading
+            log.info("Removing the temporary files left in " + directory);
+            FileUtils.cleanDirectory(directory);
+        } else {
+            FileUtils.forceMkdir(directory);
+        }
+    }
+
+    /**
+     * Create a new empty file in the store
+     * @param fileName Name of the file, any path in it is ignored
+     * @param size Size of the content that will be written, or a negative number if it is not known yet
+     * @return The new file, to be closed once it is not needed
+     * @throws IOException If the store has no room for the file, or the file cannot be created
+     */
+    public TempFile create(String fileName, long size) throws IOException {
+        long reserved = Math.max(size, 0);
+        reserve(reserved, fileName);
+
+        File fileDirectory = new File(directory, UUID.randomUUID().toString());
+        try {
+            FileUtils.forceMkdir(fileDirectory);
+        } catch (IOException e) {
+            usedSize.addAndGet(-reserved);
+            throw e;
+        }
+        return new TempFile(new File(fileDirectory, new File(fileName).getName()), reserved);
+    }
+
+    /**
+     * @return Number of bytes reserved by the files currently in the store
+     */
+    public long getUsedSize() {
+        return usedSize.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private void reserve(long bytes, String fileName) throws IOException {
+        long used;
+        do {
+            used = usedSize.get();
+            if (used + bytes > maxSize) {
+                throw new IOException("Not enough room in the temporary store " + directory + " for " + fileName + ": "
+                        + bytes + " bytes needed, " + (maxSize - used) + " available");
+            }
+        } while (!usedSize.compareAndSet(used, used + bytes));
+    }
+
+    /**
+     * File of the store. Closing it deletes the file and gives its room back to the store
+     */
+    public final class TempFile implements Closeable {
+        private final File file;
+        private long reserved;
+        private boolean closed;
+
+        private TempFile(File file, long reserved) {
+            this.file = file;
+            this.reserved = reserved;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Open the file for writing. The room for the bytes beyond the size reserved when the file was created is
+         * reserved before they are written, so the write fails as soon as the store is full instead of once the whole
+         * content is on disk. Closing the stream gives back the room reserved and not written
+         * @throws IOException If the file cannot be opened
+         */
+        public OutputStream openOutputStream() throws IOException {
+            return new ReservingOutputStream(new FileOutputStream(file));
+        }
+
+        /**
+         * Reserve the room for the bytes about to be written, when the file grows beyond its reservation
+         */
+        private synchronized void reserveWrite(long size) throws IOException {
+            if (size > reserved) {
+                reserve(size - reserved, file.getName());
+                reserved = size;
+            }
+        }
+
+        /**
+         * Give back the room reserved beyond the bytes written
+         */
+        private synchronized void releaseUnwritten(long size) {
+            if (!closed && size < reserved) {
+                usedSize.addAndGet(size - reserved);
+                reserved = size;
+            }
+        }
+
+        /**
+         * Update the room reserved for the file with its actual size, once it has been written
+         * @throws IOException If the store has no room for the new size. The file is still open and must be closed
+         */
+        public synchronized void updateSize() throws IOException {
+            long actual = file.length();
+            if (actual > reserved) {
+                reserve(actual - reserved, file.getName());
+            } else {
+                usedSize.addAndGet(actual - reserved);
+            }
+            reserved = actual;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            File fileDirectory = file.getParentFile();
+            if (!FileUtils.deleteQuietly(fileDirectory)) {
+                log.warn("Could not delete the temporary file " + file);
+            }
+            usedSize.addAndGet(-reserved);
+        }
+
+        /**
+         * Stream counting the bytes written to the file, which reserves their room before writing them
+         */
+        private final class ReservingOutputStream extends FilterOutputStream {
+            private long written;
+
+            private ReservingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                reserveWrite(written + 1);
+                out.write(b);
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                reserveWrite(written + len);
+                out.write(b, off, len);
+                written += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    releaseUnwritten(written);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+/**
+ * What was done with a file uploaded to a package
+ */
+public enum UploadResult {
+    /** A new resource was created in the package */
+    CREATED,
+    /** The file of the resource with the same name was replaced */
+    UPDATED,
+    /** The resource with the same name already had the same content, nothing was sent */
+    UNCHANGED,
+    /** CKAN did not accept the file, the resource was neither created nor replaced */
+    FAILED
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.pojos.adapters;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Holder of the Gson instance used to read and write the CKAN pojos.
+ * Gson is thread-safe and caches its adapters, so a single instance is shared by every caller.
+ */
+public final class CkanGson {
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapterFactory(new CkanTypeAdapterFactory())
+            .create();
+
+    private CkanGson() {
+    }
+
+    public static Gson get() {
+        return GSON;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.pojos.adapters;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import net.atos.qrowd.pojos.Organization;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.pojos.Result_;
+import net.atos.qrowd.pojos.Tag;
+
+/**
+ * Provides the hand-written adapters of the pojos sent to and received from the CKAN API.
+ * Any other type is left to the default Gson adapters.
+ */
+public class CkanTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+        if (rawType == Package_.class) {
+            return (TypeAdapter<T>) new PackageAdapter(gson);
+        } else if (rawType == Resource.class) {
+            return (TypeAdapter<T>) new ResourceAdapter(gson);
+        } else if (rawType == Result_.class) {
+            return (TypeAdapter<T>) new ResultAdapter(gson);
+        } else if (rawType == Organization.class) {
+            return (TypeAdapter<T>) new OrganizationAdapter(gson);
+        } else if (rawType == Tag.class) {
+            return (TypeAdapter<T>) new TagAdapter(gson);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.pojos.adapters;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.atos.qrowd.pojos.Organization;
+
+import java.io.IOException;
+
+/**
+ * Binds a CKAN organization without reflection.
+ */
+final class OrganizationAdapter extends TypeAdapter<Organization> {
+
+    private final TypeAdapter<String> stringAdapter;
+    private final TypeAdapter<Boolean> booleanAdapter;
+
+    OrganizationAdapter(Gson gson) {
+        this.stringAdapter = gson.getAdapter(String.class);
+        this.booleanAdapter = gson.getAdapter(Boolean.class);
+    }
+
+    @Override
+    public void write(JsonWriter out, Organization organization) throws IOException {
+        if (organization == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("description");
+        stringAdapter.write(out, organization.getDescription());
+        out.name("created");
+        stringAdapter.write(out, organization.getCreated());
+        out.name("title");
+        stringAdapter.write(out, organization.getTitle());
+        out.name("name");
+        stringAdapter.write(out, organization.getName());
+        out.name("is_organization");
+        booleanAdapter.write(out, organization.getIsOrganization());
+        out.name("state");
+        stringAdapter.write(out, organization.getState());
+        out.name("image_url");
+        stringAdapter.write(out, organization.getImageUrl());
+        out.name("revision_id");
+        stringAdapter.write(out, organization.getRevisionId());
+        out.name("type");
+        stringAdapter.write(out, organization.getType());
+        out.name("id");
+        stringAdapter.write(out, organization.getId());
+        out.name("approval_status");
+        stringAdapter.write(out, organization.getApprovalStatus());
+        out.endObject();
+    }
+
+    @Override
+    public Organization read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Organization organization = new Organization();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "description":
+                    organization.setDescription(stringAdapter.read(in));
+                    break;
+                case "created":
+                    organization.setCreated(stringAdapter.read(in));
+                    break;
+                case "title":
+                    organization.setTitle(stringAdapter.read(in));
+                    break;
+                case "name":
+                    organization.setName(stringAdapter.read(in));
+                    break;
+                case "is_organization":
+                    organization.setIsOrganization(booleanAdapter.read(in));
+                    break;
+                case "state":
+                    organization.setState(stringAdapter.read(in));
+                    break;
+                case "image_url":
+                    organization.setImageUrl(stringAdapter.read(in));
+                    break;
+                case "revision_id":
+                    organization.setRevisionId(stringAdapter.read(in));
+                    break;
+                case "type":
+                    organization.setType(stringAdapter.read(in));
+                    break;
+                case "id":
+                    organization.setId(stringAdapter.read(in));
+                    break;
+                case "approval_status":
+                    organization.setApprovalStatus(stringAdapter.read(in));
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return organization;
+    }
+}
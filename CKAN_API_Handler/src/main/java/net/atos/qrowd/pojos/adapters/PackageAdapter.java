@@ -0,0 +1,237 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.pojos.adapters;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.atos.qrowd.pojos.Organization;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.pojos.Tag;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Binds a CKAN package (dataset), with its resources, tags and organization without reflection.
+ */
+final class PackageAdapter extends TypeAdapter<Package_> {
+
+    private final TypeAdapter<String> stringAdapter;
+    private final TypeAdapter<List<Object>> objectListAdapter;
+    private final TypeAdapter<Boolean> booleanAdapter;
+    private final TypeAdapter<Integer> integerAdapter;
+    private final TypeAdapter<List<Resource>> resourceListAdapter;
+    private final TypeAdapter<List<Tag>> tagListAdapter;
+    private final TypeAdapter<Organization> organizationAdapter;
+
+    PackageAdapter(Gson gson) {
+        this.stringAdapter = gson.getAdapter(String.class);
+        this.objectListAdapter = gson.getAdapter(new TypeToken<List<Object>>() {});
+        this.booleanAdapter = gson.getAdapter(Boolean.class);
+        this.integerAdapter = gson.getAdapter(Integer.class);
+        this.resourceListAdapter = gson.getAdapter(new TypeToken<List<Resource>>() {});
+        this.tagListAdapter = gson.getAdapter(new TypeToken<List<Tag>>() {});
+        this.organizationAdapter = gson.getAdapter(Organization.class);
+    }
+
+    @Override
+    public void write(JsonWriter out, Package_ dataset) throws IOException {
+        if (dataset == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("license_title");
+        stringAdapter.write(out, dataset.getLicenseTitle());
+        out.name("maintainer");
+        stringAdapter.write(out, dataset.getMaintainer());
+        out.name("relationships_as_object");
+        objectListAdapter.write(out, dataset.getRelationshipsAsObject());
+        out.name("private");
+        booleanAdapter.write(out, dataset.getPrivate());
+        out.name("maintainer_email");
+        stringAdapter.write(out, dataset.getMaintainerEmail());
+        out.name("num_tags");
+        integerAdapter.write(out, dataset.getNumTags());
+        out.name("id");
+        stringAdapter.write(out, dataset.getId());
+        out.name("metadata_created");
+        stringAdapter.write(out, dataset.getMetadataCreated());
+        out.name("metadata_modified");
+        stringAdapter.write(out, dataset.getMetadataModified());
+        out.name("author");
+        stringAdapter.write(out, dataset.getAuthor());
+        out.name("author_email");
+        stringAdapter.write(out, dataset.getAuthorEmail());
+        out.name("state");
+        stringAdapter.write(out, dataset.getState());
+        out.name("version");
+        stringAdapter.write(out, dataset.getVersion());
+        out.name("creator_user_id");
+        stringAdapter.write(out, dataset.getCreatorUserId());
+        out.name("type");
+        stringAdapter.write(out, dataset.getType());
+        out.name("resources");
+        resourceListAdapter.write(out, dataset.getResources());
+        out.name("num_resources");
+        integerAdapter.write(out, dataset.getNumResources());
+        out.name("tags");
+        tagListAdapter.write(out, dataset.getTags());
+        out.name("groups");
+        objectListAdapter.write(out, dataset.getGroups());
+        out.name("license_id");
+        stringAdapter.write(out, dataset.getLicenseId());
+        out.name("relationships_as_subject");
+        objectListAdapter.write(out, dataset.getRelationshipsAsSubject());
+        out.name("organization");
+        organizationAdapter.write(out, dataset.getOrganization());
+        out.name("name");
+        stringAdapter.write(out, dataset.getName());
+        out.name("isopen");
+        booleanAdapter.write(out, dataset.getIsopen());
+        out.name("url");
+        stringAdapter.write(out, dataset.getUrl());
+        out.name("notes");
+        stringAdapter.write(out, dataset.getNotes());
+        out.name("owner_org");
+        stringAdapter.write(out, dataset.getOwnerOrg());
+        out.name("extras");
+        objectListAdapter.write(out, dataset.getExtras());
+        out.name("license_url");
+        stringAdapter.write(out, dataset.getLicenseUrl());
+        out.name("title");
+        stringAdapter.write(out, dataset.getTitle());
+        out.name("revision_id");
+        stringAdapter.write(out, dataset.getRevisionId());
+        out.endObject();
+    }
+
+    @Override
+    public Package_ read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Package_ dataset = new Package_();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "license_title":
+                    dataset.setLicenseTitle(stringAdapter.read(in));
+                    break;
+                case "maintainer":
+                    dataset.setMaintainer(stringAdapter.read(in));
+                    break;
+                case "relationships_as_object":
+                    dataset.setRelationshipsAsObject(objectListAdapter.read(in));
+                    break;
+                case "private":
+                    dataset.setPrivate(booleanAdapter.read(in));
+                    break;
+                case "maintainer_email":
+                    dataset.setMaintainerEmail(stringAdapter.read(in));
+                    break;
+                case "num_tags":
+                    dataset.setNumTags(integerAdapter.read(in));
+                    break;
+                case "id":
+                    dataset.setId(stringAdapter.read(in));
+                    break;
+                case "metadata_created":
+                    dataset.setMetadataCreated(stringAdapter.read(in));
+                    break;
+                case "metadata_modified":
+                    dataset.setMetadataModified(stringAdapter.read(in));
+                    break;
+                case "author":
+                    dataset.setAuthor(stringAdapter.read(in));
+                    break;
+                case "author_email":
+                    dataset.setAuthorEmail(stringAdapter.read(in));
+                    break;
+                case "state":
+                    dataset.setState(stringAdapter.read(in));
+                    break;
+                case "version":
+                    dataset.setVersion(stringAdapter.read(in));
+                    break;
+                case "creator_user_id":
+                    dataset.setCreatorUserId(stringAdapter.read(in));
+                    break;
+                case "type":
+                    dataset.setType(stringAdapter.read(in));
+                    break;
+                case "resources":
+                    dataset.setResources(resourceListAdapter.read(in));
+                    break;
+                case "num_resources":
+                    dataset.setNumResources(integerAdapter.read(in));
+                    break;
+                case "tags":
+                    dataset.setTags(tagListAdapter.read(in));
+                    break;
+                case "groups":
+                    dataset.setGroups(objectListAdapter.read(in));
+                    break;
+                case "license_id":
+                    dataset.setLicenseId(stringAdapter.read(in));
+                    break;
+                case "relationships_as_subject":
+                    dataset.setRelationshipsAsSubject(objectListAdapter.read(in));
+                    break;
+                case "organization":
+                    dataset.setOrganization(organizationAdapter.read(in));
+                    break;
+                case "name":
+                    dataset.setName(stringAdapter.read(in));
+                    break;
+                case "isopen":
+                    dataset.setIsopen(booleanAdapter.read(in));
+                    break;
+                case "url":
+                    dataset.setUrl(stringAdapter.read(in));
+                    break;
+                case "notes":
+                    dataset.setNotes(stringAdapter.read(in));
+                    break;
+                case "owner_org":
+                    dataset.setOwnerOrg(stringAdapter.read(in));
+                    break;
+                case "extras":
+                    dataset.setExtras(objectListAdapter.read(in));
+                    break;
+                case "license_url":
+                    dataset.setLicenseUrl(stringAdapter.read(in));
+                    break;
+                case "title":
+                    dataset.setTitle(stringAdapter.read(in));
+                    break;
+                case "revision_id":
+                    dataset.setRevisionId(stringAdapter.read(in));
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return dataset;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.pojos.adapters;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.atos.qrowd.pojos.Result_;
+
+import java.io.IOException;
+
+/**
+ * Binds a resource found by resource_search without reflection.
+ */
+final class ResultAdapter extends TypeAdapter<Result_> {
+
+    private final TypeAdapter<String> stringAdapter;
+    private final TypeAdapter<Object> objectAdapter;
+    private final TypeAdapter<Integer> integerAdapter;
+
+    ResultAdapter(Gson gson) {
+        this.stringAdapter = gson.getAdapter(String.class);
+        this.objectAdapter = gson.getAdapter(Object.class);
+        this.integerAdapter = gson.getAdapter(Integer.class);
+    }
+
+    @Override
+    public void write(JsonWriter out, Result_ resource) throws IOException {
+        if (resource == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("key");
+        stringAdapter.write(out, resource.getKey());
+        out.name("cache_last_updated");
+        objectAdapter.write(out, resource.getCacheLastUpdated());
+        out.name("package_id");
+        stringAdapter.write(out, resource.getPackageId());
+        out.name("webstore_last_updated");
+        objectAdapter.write(out, resource.getWebstoreLastUpdated());
+        out.name("file");
+        stringAdapter.write(out, resource.getFile());
+        out.name("id");
+        stringAdapter.write(out, resource.getId());
+        out.name("size");
+        objectAdapter.write(out, resource.getSize());
+        out.name("state");
+        stringAdapter.write(out, resource.getState());
+        out.name("last_modified");
+        stringAdapter.write(out, resource.getLastModified());
+        out.name("hash");
+        stringAdapter.write(out, resource.getHash());
+        out.name("description");
+        stringAdapter.write(out, resource.getDescription());
+        out.name("format");
+        stringAdapter.write(out, resource.getFormat());
+        out.name("mimetype_inner");
+        objectAdapter.write(out, resource.getMimetypeInner());
+        out.name("url_type");
+        stringAdapter.write(out, resource.getUrlType());
+        out.name("mimetype");
+        objectAdapter.write(out, resource.getMimetype());
+        out.name("cache_url");
+        objectAdapter.write(out, resource.getCacheUrl());
+        out.name("name");
+        stringAdapter.write(out, resource.getName());
+        out.name("created");
+        stringAdapter.write(out, resource.getCreated());
+        out.name("url");
+        stringAdapter.write(out, resource.getUrl());
+        out.name("webstore_url");
+        objectAdapter.write(out, resource.getWebstoreUrl());
+        out.name("position");
+        integerAdapter.write(out, resource.getPosition());
+        out.name("revision_id");
+        stringAdapter.write(out, resource.getRevisionId());
+        out.name("resource_type");
+        objectAdapter.write(out, resource.getResourceType());
+        out.endObject();
+    }
+
+    @Override
+    public Result_ read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Result_ resource = new Result_();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "key":
+                    resource.setKey(stringAdapter.read(in));
+                    break;
+                case "cache_last_updated":
+                    resource.setCacheLastUpdated(objectAdapter.read(in));
+                    break;
+                case "package_id":
+                    resource.setPackageId(stringAdapter.read(in));
+                    break;
+                case "webstore_last_updated":
+                    resource.setWebstoreLastUpdated(objectAdapter.read(in));
+                    break;
+                case "file":
+                    resource.setFile(stringAdapter.read(in));
+                    break;
+                case "id":
+                    resource.setId(stringAdapter.read(in));
+                    break;
+                case "size":
+                    resource.setSize(objectAdapter.read(in));
+                    break;
+                case "state":
+                    resource.setState(stringAdapter.read(in));
+                    break;
+                case "last_modified":
+                    resource.setLastModified(stringAdapter.read(in));
+                    break;
+                case "hash":
+                    resource.setHash(stringAdapter.read(in));
+                    break;
+                case "description":
+                    resource.setDescription(stringAdapter.read(in));
+                    break;
+                case "format":
+                    resource.setFormat(stringAdapter.read(in));
+                    break;
+                case "mimetype_inner":
+                    resource.setMimetypeInner(objectAdapter.read(in));
+                    break;
+                case "url_type":
+                    resource.setUrlType(stringAdapter.read(in));
+                    break;
+                case "mimetype":
+                    resource.setMimetype(objectAdapter.read(in));
+                    break;
+                case "cache_url":
+                    resource.setCacheUrl(objectAdapter.read(in));
+                    break;
+                case "name":
+                    resource.setName(stringAdapter.read(in));
+                    break;
+                case "created":
+                    resource.setCreated(stringAdapter.read(in));
+                    break;
+                case "url":
+                    resource.setUrl(stringAdapter.read(in));
+                    break;
+                case "webstore_url":
+                    resource.setWebstoreUrl(objectAdapter.read(in));
+                    break;
+                case "position":
+                    Integer position = integerAdapter.read(in);
+                    if (position != null) {
+                        resource.setPosition(position);
+                    }
+                    break;
+                case "revision_id":
+                    resource.setRevisionId(stringAdapter.read(in));
+                    break;
+                case "resource_type":
+                    resource.setResourceType(objectAdapter.read(in));
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return resource;
+    }
+}
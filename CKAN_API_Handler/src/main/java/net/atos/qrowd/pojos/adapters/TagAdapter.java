@@ -0,0 +1,92 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.pojos.adapters;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.atos.qrowd.pojos.Tag;
+
+import java.io.IOException;
+
+/**
+ * Binds a tag of a CKAN package without reflection.
+ */
+final class TagAdapter extends TypeAdapter<Tag> {
+
+    private final TypeAdapter<Object> objectAdapter;
+    private final TypeAdapter<String> stringAdapter;
+
+    TagAdapter(Gson gson) {
+        this.objectAdapter = gson.getAdapter(Object.class);
+        this.stringAdapter = gson.getAdapter(String.class);
+    }
+
+    @Override
+    public void write(JsonWriter out, Tag tag) throws IOException {
+        if (tag == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("vocabulary_id");
+        objectAdapter.write(out, tag.getVocabularyId());
+        out.name("state");
+        stringAdapter.write(out, tag.getState());
+        out.name("display_name");
+        stringAdapter.write(out, tag.getDisplayName());
+        out.name("id");
+        stringAdapter.write(out, tag.getId());
+        out.name("name");
+        stringAdapter.write(out, tag.getName());
+        out.endObject();
+    }
+
+    @Override
+    public Tag read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Tag tag = new Tag();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "vocabulary_id":
+                    tag.setVocabularyId(objectAdapter.read(in));
+                    break;
+                case "state":
+                    tag.setState(stringAdapter.read(in));
+                    break;
+                case "display_name":
+                    tag.setDisplayName(stringAdapter.read(in));
+                    break;
+                case "id":
+                    tag.setId(stringAdapter.read(in));
+                    break;
+                case "name":
+                    tag.setName(stringAdapter.read(in));
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return tag;
+    }
+}
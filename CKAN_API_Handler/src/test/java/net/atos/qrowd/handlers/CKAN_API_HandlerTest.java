@@ -0,0 +1,178 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import net.atos.qrowd.handlers.fake.FakeCkanServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CKAN_API_HandlerTest {
+
+    private static final String ORGANIZATION = "test_org";
+    private static final String PACKAGE = "test_package";
+
+    private FakeCkanServer ckan;
+    private CKAN_API_Handler handler;
+
+    @Before
+    public void init() throws IOException {
+        ckan = new FakeCkanServer();
+        ckan.addOrganization(ORGANIZATION);
+        ckan.addPackage(PACKAGE, ORGANIZATION);
+        handler = new CKAN_API_Handler(ckan.getUrl(), "key", ConnectionPoolSettings.DEFAULT,
+                new MetadataCacheSettings(MetadataCacheSettings.DEFAULT_TIME_TO_LIVE, MetadataCacheSettings.DEFAULT_MAX_ENTRIES));
+    }
+
+    @After
+    public void close() {
+        handler.close();
+        ckan.close();
+    }
+
+    @Test
+    public void newFileTakesOneLookupAndOneUpload() throws IOException {
+        assertEquals(UploadResult.CREATED, upload("new.csv", "content"));
+        assertEquals(1, ckan.getCalls("package_search"));
+        assertEquals(1, ckan.getCalls("resource_create"));
+        assertEquals(2, ckan.getTotalCalls());
+    }
+
+    @Test
+    public void updateTakesOneLookupAndOneUpload() throws IOException {
+        //Several resources with the name of the file, only the first one is updated
+        ckan.addResource(PACKAGE, "data.csv", new byte[10]);
+        ckan.addResource(PACKAGE, "data.csv", new byte[10]);
+        ckan.addResource(PACKAGE, "other.csv", new byte[10]);
+
+        assertEquals(UploadResult.UPDATED, upload("data.csv", "content"));
+        assertEquals(1, ckan.getCalls("package_search"));
+        assertEquals(1, ckan.getCalls("resource_patch"));
+        assertEquals(2, ckan.getTotalCalls());
+    }
+
+    @Test
+    public void updatesOfACachedPackageTakeOnlyTheUpload() throws IOException {
+        ckan.addResource(PACKAGE, "data.csv", new byte[10]);
+        upload("data.csv", "first");
+        ckan.resetCounters();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(UploadResult.UPDATED, upload("data.csv", "content " + i));
+        }
+        assertEquals(5, ckan.getCalls("resource_patch"));
+        assertEquals(5, ckan.getTotalCalls());
+    }
+
+    @Test
+    public void newFilesOfACachedPackageTakeOnlyTheUploads() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(UploadResult.CREATED, upload("new_" + i + ".csv", "content " + i));
+        }
+        assertEquals(1, ckan.getCalls("package_search"));
+        assertEquals(5, ckan.getCalls("resource_create"));
+
+        //The resources created are cached with their ids, so they are updated without a lookup
+        assertEquals(UploadResult.UPDATED, upload("new_0.csv", "changed"));
+        assertEquals(1, ckan.getCalls("package_search"));
+        assertEquals(1, ckan.getCalls("resource_patch"));
+        assertEquals(5, ckan.getResourceCount());
+    }
+
+    @Test
+    public void existenceChecksFillTheCache() throws IOException {
+        ckan.addResource(PACKAGE, "data.csv", new byte[10]);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(handler.packageExists(PACKAGE));
+        }
+        //The upload after the checks finds the resource to update in the cache too
+        assertEquals(UploadResult.UPDATED, upload("data.csv", "content"));
+        assertEquals(1, ckan.getCalls("package_search"));
+
+        assertFalse(handler.packageExists("missing"));
+        assertEquals(2, ckan.getCalls("package_search"));
+    }
+
+    @Test
+    public void rejectedUploadsFail() throws IOException {
+        ckan.addResource(PACKAGE, "data.csv", new byte[10]);
+        upload("data.csv", "first");
+        //The package is cached, so only the uploads reach CKAN
+        ckan.setErrorRate(1);
+
+        assertEquals(UploadResult.FAILED, upload("data.csv", "second"));
+        assertEquals(UploadResult.FAILED, upload("new.csv", "content"));
+        assertEquals(false, handler.createOrUpdateResource(stream("content"), 7, "new.csv", PACKAGE));
+    }
+
+    @Test
+    public void hashIsComputedWhileUploading() throws IOException {
+        String hash = sha256("content");
+        assertFalse(handler.mayBeUnchanged("data.csv", PACKAGE, 7));
+        assertEquals(UploadResult.CREATED, handler.createOrUpdateResourceHashing(stream("content"), 7, "data.csv", PACKAGE));
+        assertEquals(hash, handler.getPackageByName(PACKAGE).getResources().get(0).getHash());
+
+        //Only a file with the same name and size may be unchanged, its hash is needed to know it
+        assertTrue(handler.mayBeUnchanged("data.csv", PACKAGE, 7));
+        assertFalse(handler.mayBeUnchanged("data.csv", PACKAGE, 8));
+        assertEquals(UploadResult.UNCHANGED, handler.createOrUpdateResource(stream("content"), 7, "data.csv", PACKAGE, hash));
+
+        assertEquals(UploadResult.UPDATED, handler.createOrUpdateResourceHashing(stream("changed"), 7, "data.csv", PACKAGE));
+        assertEquals(sha256("changed"), handler.getPackageByName(PACKAGE).getResources().get(0).getHash());
+        assertEquals(UploadResult.UNCHANGED, handler.createOrUpdateResource(stream("changed"), 7, "data.csv", PACKAGE, sha256("changed")));
+    }
+
+    @Test
+    public void packagesCreatedForTheSameBackupCountAsCreated() throws IOException {
+        assertTrue(handler.createPackagePojoNoResources(handler.getPackageByName(PACKAGE), "backup", "tag", "id"));
+        assertEquals("id", CKAN_API_Handler.getBackupId(handler.getPackageByName("backup")));
+        //Another node creating the same backup
+        assertTrue(handler.createPackagePojoNoResources(handler.getPackageByName(PACKAGE), "backup", "tag", "id"));
+        //Another backup with the same name
+        assertFalse(handler.createPackagePojoNoResources(handler.getPackageByName(PACKAGE), "backup", "tag", "other_id"));
+        assertFalse(handler.createPackagePojoNoResources(handler.getPackageByName(PACKAGE), "backup", "tag"));
+        assertEquals(2, ckan.getPackageCount());
+
+        ckan.setErrorRate(1);
+        assertFalse(handler.createPackage("other", ORGANIZATION, "", false, null));
+    }
+
+    private UploadResult upload(String fileName, String content) throws IOException {
+        return handler.createOrUpdateResource(stream(content), content.length(), fileName, PACKAGE, null);
+    }
+
+    private static ByteArrayInputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes());
+    }
+
+    private static String sha256(String content) throws IOException {
+        try {
+            return String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(content.getBytes())));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class TempFileStoreTest {
+
+    private File directory;
+    private TempFileStore store;
+
+    @Before
+    public void init() throws IOException {
+        directory = Files.createTempDirectory("store").toFile();
+        store = new TempFileStore(directory, 1000);
+    }
+
+    @After
+    public void close() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void fileOfUnknownSizeStopsAtTheCap() throws IOException {
+        try (TempFileStore.TempFile file = store.create("unknown.csv", -1)) {
+            try (OutputStream out = file.openOutputStream()) {
+                out.write(new byte[600]);
+                out.write(new byte[400]);
+                out.write(new byte[1]);
+                fail("The store has room for 1000 bytes only");
+            } catch (IOException e) {
+                //The byte over the cap is never written
+                assertEquals(1000, file.getFile().length());
+            }
+            assertEquals(1000, store.getUsedSize());
+        }
+        assertEquals(0, store.getUsedSize());
+    }
+
+    @Test
+    public void roomNotWrittenIsGivenBack() throws IOException {
+        try (TempFileStore.TempFile file = store.create("smaller.csv", 800)) {
+            try (OutputStream out = file.openOutputStream()) {
+                out.write(new byte[300]);
+            }
+            assertEquals(300, store.getUsedSize());
+            //The room given back can be used by other files
+            try (TempFileStore.TempFile other = store.create("other.csv", 700)) {
+                assertEquals(1000, store.getUsedSize());
+            }
+        }
+        assertEquals(0, store.getUsedSize());
+        assertFalse(new File(directory, "smaller.csv").exists());
+    }
+}
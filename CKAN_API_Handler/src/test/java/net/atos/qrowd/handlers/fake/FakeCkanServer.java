@@ -0,0 +1,1020 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers.fake;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.pojos.Organization;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.pojos.Tag;
+import net.atos.qrowd.pojos.adapters.CkanGson;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in of a CKAN instance, on the HTTP server of the JDK, to run the handler and the processors
+ * without network. It answers the actions used by CKAN_API_Handler with responses shaped like the ones of CKAN:
+ * package_search, package_create, organization_show, organization_create, resource_search, resource_create and
+ * resource_patch, under both /api/action and /api/3/action, and serves the files uploaded to its resources.
+ * Everything is kept in memory and lost when the server is closed.
+ *
+ * A latency and a rate of errors can be injected in every call, and the calls received are counted by action,
+ * so runs are repeatable and the number of calls made by the client can be checked. The peak number of calls
+ * waiting for their latency at the same time tells how many connections the client used at once, whatever the
+ * speed of the machine running the test.
+ * The API key is not checked, and every package is returned by package_search, private or not.
+ */
+public class FakeCkanServer implements Closeable {
+
+    public static final String DOWNLOAD = "download";
+
+    private static final Gson gson = CkanGson.get();
+
+    static {
+        //The HTTP server of the JDK leaves Nagle's algorithm on, adding the 40 ms of a delayed ACK to most calls.
+        //The JDK reads the property once, so it is set before the first server is created, unless given on the command line
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    //Filters of package_search, as sent by CKAN_API_Handler.searchPackagesAfter
+    private static final Pattern AFTER_FILTER = Pattern.compile("metadata_created:\\{\"([^\"]+)\" TO \\*\\] OR \\(metadata_created:\"[^\"]+\" AND id:\\{\"([^\"]+)\" TO \\*\\]\\)");
+    private static final Pattern EXCLUDED_TAG_FILTER = Pattern.compile("-tags:\"([^\"]+)\"");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String url;
+
+    //Packages by name sorted, as package_search returns them, resources by id, organizations by name
+    private final Object lock = new Object();
+    private final TreeMap<String, Package_> packages = new TreeMap<>();
+    private final Map<String, StoredResource> resources = new HashMap<>();
+    private final Map<String, Organization> organizations = new HashMap<>();
+
+    private final Map<String, AtomicLong> calls = new ConcurrentHashMap<>();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    //Calls waiting for their injected latency now, and the most of them at the same time
+    private final AtomicInteger callsInFlight = new AtomicInteger();
+    private final AtomicInteger peakCallsInFlight = new AtomicInteger();
+
+    private volatile long minLatency;
+    private volatile long maxLatency;
+    private volatile double errorRate;
+    private volatile boolean storeContent = true;
+    private volatile long downloadCut = -1;
+
+    /**
+     * Start a server on a free port of the loopback interface
+     * @throws IOException If the server cannot be started
+     */
+    public FakeCkanServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Start a server on the loopback interface
+     * @param port Port to listen to, 0 for a free one
+     * @throws IOException If the server cannot be started
+     */
+    public FakeCkanServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        //Each exchange gets its own thread, so the injected latency of a call does not hold back the other ones
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-ckan");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handleAction);
+        server.createContext("/dataset/", this::handleDownload);
+        server.start();
+        url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return Base url of the server, the host to give to CKAN_API_Handler
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Delay every call, before it is processed, by a random time between minMillis and maxMillis
+     */
+    public void setLatency(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid latency: " + minMillis + " - " + maxMillis);
+        }
+        this.minLatency = minMillis;
+        this.maxLatency = maxMillis;
+    }
+
+    /**
+     * Answer this fraction of the calls, chosen at random, with a 500 error without processing them
+     * @param errorRate Between 0, no errors, and 1, every call fails
+     */
+    public void setErrorRate(double errorRate) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("Invalid error rate: " + errorRate);
+        }
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Keep the content of the files uploaded, true by default. When false only their size is kept, and their
+     * downloads return that number of zeros, so large runs do not fill the heap.
+     */
+    public void setStoreContent(boolean storeContent) {
+        this.storeContent = storeContent;
+    }
+
+    /**
+     * Close the connection of each download after this number of bytes of the file, as a network failure would.
+     * The files not longer than that are sent whole
+     * @param bytes Bytes sent before closing, -1 (default) to always send the whole files
+     */
+    public void setDownloadCut(long bytes) {
+        this.downloadCut = bytes;
+    }
+
+    /**
+     * @param action Name of the action, or DOWNLOAD for the files served
+     * @return Number of calls received for the action, including the failed ones
+     */
+    public long getCalls(String action) {
+        AtomicLong count = calls.get(action);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return Number of calls received by action
+     */
+    public Map<String, Long> getCalls() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        calls.forEach((action, count) -> snapshot.put(action, count.get()));
+        return snapshot;
+    }
+
+    /**
+     * @return Number of calls received, of every action
+     */
+    public long getTotalCalls() {
+        long total = 0;
+        for (AtomicLong count : calls.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return Number of bytes of the bodies of the requests received
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return The most calls waiting for their injected latency at the same time, each of them holding a connection
+     * of the client until it is answered. Only counted while a latency is set
+     */
+    public int getPeakCallsInFlight() {
+        return peakCallsInFlight.get();
+    }
+
+    /**
+     * Set the counters of calls and bytes, and the peak of calls in flight, back to 0, the stored data is kept
+     */
+    public void resetCounters() {
+        calls.clear();
+        bytesReceived.set(0);
+        peakCallsInFlight.set(0);
+    }
+
+    /**
+     * Remove every organization, package and resource
+     */
+    public void clear() {
+        synchronized (lock) {
+            packages.clear();
+            resources.clear();
+            organizations.clear();
+        }
+    }
+
+    /**
+     * Create an organization, as organization_create does, if it does not exist yet
+     * @return The organization with that name
+     */
+    public Organization addOrganization(String name) {
+        synchronized (lock) {
+            Organization organization = organizations.get(name.toLowerCase());
+            if (organization == null) {
+                organization = newOrganization(name.toLowerCase(), name.toLowerCase(), name);
+            }
+            return organization;
+        }
+    }
+
+    /**
+     * Create an empty package in an organization, created if needed, as package_create does
+     * @return The new package
+     * @throws IllegalStateException If a package with that name exists
+     */
+    public Package_ addPackage(String name, String organization) {
+        synchronized (lock) {
+            if (packages.containsKey(name.toLowerCase())) {
+                throw new IllegalStateException("Package " + name + " already exists");
+            }
+            Package_ dataset = new Package_();
+            dataset.setName(name);
+            dataset.setTitle(name);
+            return storePackage(dataset, addOrganization(organization));
+        }
+    }
+
+    /**
+     * Add a file to a package as a new resource, as resource_create does with an upload
+     * @return The new resource
+     * @throws IllegalStateException If the package does not exist
+     */
+    public Resource addResource(String packageName, String name, byte[] content) {
+        synchronized (lock) {
+            Package_ dataset = findPackage(packageName);
+            if (dataset == null) {
+                throw new IllegalStateException("Package " + packageName + " not found");
+            }
+            Map<String, String> fields = new HashMap<>();
+            fields.put("name", name);
+            fields.put("format", name.contains(".") ? name.substring(name.lastIndexOf('.') + 1).toUpperCase() : "");
+            return storeResource(dataset, fields, content);
+        }
+    }
+
+    /**
+     * Delete a package and its resources, as package_delete and a purge would
+     * @throws IllegalStateException If the package does not exist
+     */
+    public void removePackage(String name) {
+        synchronized (lock) {
+            Package_ dataset = findPackage(name);
+            if (dataset == null) {
+                throw new IllegalStateException("Package " + name + " not found");
+            }
+            packages.remove(dataset.getName().toLowerCase());
+            for (Resource resource : dataset.getResources()) {
+                resources.remove(resource.getId());
+            }
+        }
+    }
+
+    /**
+     * Lose the file of a resource, its download url answers 404 Not found while the resource is still listed in its package
+     * @throws IllegalStateException If the resource does not exist
+     */
+    public void removeContent(String resourceId) {
+        synchronized (lock) {
+            StoredResource stored = resources.get(resourceId);
+            if (stored == null) {
+                throw new IllegalStateException("Resource " + resourceId + " not found");
+            }
+            stored.size = -1;
+            stored.content = null;
+        }
+    }
+
+    /**
+     * @return Number of packages stored
+     */
+    public int getPackageCount() {
+        synchronized (lock) {
+            return packages.size();
+        }
+    }
+
+    /**
+     * @return Number of resources stored, in every package
+     */
+    public int getResourceCount() {
+        synchronized (lock) {
+            return resources.size();
+        }
+    }
+
+    /**
+     * @return The files of the resources of a package by name of the resource, only the ones with a file stored
+     * @throws IllegalStateException If the package does not exist
+     */
+    public Map<String, byte[]> getContents(String packageName) {
+        synchronized (lock) {
+            Package_ dataset = findPackage(packageName);
+            if (dataset == null) {
+                throw new IllegalStateException("Package " + packageName + " not found");
+            }
+            Map<String, byte[]> contents = new TreeMap<>();
+            for (Resource resource : dataset.getResources()) {
+                StoredResource stored = resources.get(resource.getId());
+                if (stored != null && stored.content != null) {
+                    contents.put(resource.getName(), stored.content);
+                }
+            }
+            return contents;
+        }
+    }
+
+    /**
+     * Stop the server, the calls in progress are not waited for
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleAction(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String action = path.substring(path.lastIndexOf('/') + 1);
+        try {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            bytesReceived.addAndGet(body.length);
+            count(action);
+            if (injectFailure(exchange, action)) {
+                return;
+            }
+            Request request = new Request(exchange, body);
+            switch (action) {
+                case "package_search":
+                    packageSearch(exchange, request);
+                    break;
+                case "package_create":
+                    packageCreate(exchange, request);
+                    break;
+                case "organization_show":
+                    organizationShow(exchange, request);
+                    break;
+                case "organization_create":
+                    organizationCreate(exchange, request);
+                    break;
+                case "resource_search":
+                    resourceSearch(exchange, request);
+                    break;
+                case "resource_create":
+                    resourceCreate(exchange, request);
+                    break;
+                case "resource_patch":
+                    resourcePatch(exchange, request);
+                    break;
+                default:
+                    sendError(exchange, 400, action, "Bad request - Action name not known: " + action, "Bad Request");
+            }
+        } catch (IOException | RuntimeException e) {
+            if (exchange.getResponseCode() == -1) {
+                sendError(exchange, 500, action, e.toString(), "Internal Server Error");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleDownload(HttpExchange exchange) throws IOException {
+        try {
+            IOUtils.toByteArray(exchange.getRequestBody());
+            count(DOWNLOAD);
+            if (injectFailure(exchange, DOWNLOAD)) {
+                return;
+            }
+            //dataset/<package id>/resource/<resource id>/download/<file name>
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            StoredResource stored = null;
+            if (path.length == 7 && "resource".equals(path[3]) && "download".equals(path[5])) {
+                synchronized (lock) {
+                    stored = resources.get(path[4]);
+                }
+            }
+            if (stored == null || stored.size < 0) {
+                send(exchange, 404, "Not found".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            Object mimetype = stored.resource.getMimetype();
+            exchange.getResponseHeaders().set("Content-Type", mimetype != null ? mimetype.toString() : "application/octet-stream");
+            exchange.sendResponseHeaders(200, stored.size == 0 ? -1 : stored.size);
+            long cut = downloadCut;
+            long sent = cut >= 0 ? Math.min(cut, stored.size) : stored.size;
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (stored.content != null) {
+                    out.write(stored.content, 0, (int) sent);
+                } else {
+                    byte[] zeros = new byte[8192];
+                    for (long left = sent; left > 0; left -= zeros.length) {
+                        out.write(zeros, 0, (int) Math.min(left, zeros.length));
+                    }
+                }
+            } catch (IOException e) {
+                //Closing a download cut short drops the connection, which is the point
+                if (sent == stored.size) {
+                    throw e;
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Wait for the injected latency, and answer with an error if the call was chosen to fail
+     * @return true if an error was sent
+     */
+    private boolean injectFailure(HttpExchange exchange, String action) throws IOException {
+        long min = minLatency;
+        long max = maxLatency;
+        if (max > 0) {
+            peakCallsInFlight.accumulateAndGet(callsInFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                callsInFlight.decrementAndGet();
+            }
+        }
+        double rate = errorRate;
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            sendError(exchange, 500, action, "Injected error", "Internal Server Error");
+            return true;
+        }
+        return false;
+    }
+
+    private void count(String action) {
+        calls.computeIfAbsent(action, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * package_search with q as *:*, field:value, or a text looked for in the name and title of the packages.
+     * The results are sorted by name, or by creation date and id when sort starts with metadata_created.
+     * fq only supports the filters sent by CKAN_API_Handler.searchPackagesAfter: the packages after a key and without a tag.
+     */
+    private void packageSearch(HttpExchange exchange, Request request) throws IOException {
+        String q = request.get("q", "*:*");
+        int start = Integer.parseInt(request.get("start", "0"));
+        int rows = Integer.parseInt(request.get("rows", "10"));
+        String sort = request.get("sort", "name asc");
+        String fq = request.get("fq", "");
+        Matcher afterFilter = AFTER_FILTER.matcher(fq);
+        String after = afterFilter.find() ? afterFilter.group(1) + " " + afterFilter.group(2) : null;
+        Matcher tagFilter = EXCLUDED_TAG_FILTER.matcher(fq);
+        String excludedTag = tagFilter.find() ? tagFilter.group(1) : null;
+
+        JsonObject result = new JsonObject();
+        JsonArray results = new JsonArray();
+        int count = 0;
+        synchronized (lock) {
+            List<Package_> sorted = new ArrayList<>(packages.values());
+            if (sort.startsWith("metadata_created")) {
+                sorted.sort(Comparator.comparing(CKAN_API_Handler::getPageKey));
+            }
+            for (Package_ dataset : sorted) {
+                if (!matches(dataset, q)
+                        || (after != null && CKAN_API_Handler.getPageKey(dataset).compareTo(after) <= 0)
+                        || (excludedTag != null && hasTag(dataset, excludedTag))) {
+                    continue;
+                }
+                if (count >= start && count < start + rows) {
+                    results.add(gson.toJsonTree(dataset));
+                }
+                count++;
+            }
+        }
+        result.addProperty("count", count);
+        result.addProperty("sort", sort);
+        result.add("facets", new JsonObject());
+        result.add("results", results);
+        result.add("search_facets", new JsonObject());
+        sendResult(exchange, "package_search", result);
+    }
+
+    private static boolean hasTag(Package_ dataset, String tag) {
+        if (dataset.getTags() != null) {
+            for (Tag t : dataset.getTags()) {
+                if (tag.equals(t.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(Package_ dataset, String q) {
+        if ("*:*".equals(q) || q.isEmpty()) {
+            return true;
+        }
+        int colon = q.indexOf(':');
+        if (colon > 0) {
+            String value = q.substring(colon + 1);
+            switch (q.substring(0, colon)) {
+                case "name":
+                    return value.equalsIgnoreCase(dataset.getName());
+                case "id":
+                    return value.equals(dataset.getId());
+                case "owner_org":
+                    return value.equals(dataset.getOwnerOrg());
+                default:
+                    return false;
+            }
+        }
+        String text = q.toLowerCase();
+        return dataset.getName().toLowerCase().contains(text)
+                || (dataset.getTitle() != null && dataset.getTitle().toLowerCase().contains(text));
+    }
+
+    /**
+     * package_create with the package as JSON in the body. The resources sent are ignored.
+     */
+    private void packageCreate(HttpExchange exchange, Request request) throws IOException {
+        Package_ dataset;
+        try {
+            dataset = gson.fromJson(request.text(), Package_.class);
+        } catch (JsonParseException e) {
+            sendError(exchange, 400, "package_create", "JSON Error: " + e.getMessage(), "Bad Request");
+            return;
+        }
+        if (dataset == null || dataset.getName() == null || dataset.getName().isEmpty()) {
+            sendValidationError(exchange, "package_create", "name", "Missing value");
+            return;
+        }
+        JsonElement created;
+        synchronized (lock) {
+            if (packages.containsKey(dataset.getName().toLowerCase())) {
+                sendValidationError(exchange, "package_create", "name", "That URL is already in use.");
+                return;
+            }
+            Organization organization = null;
+            if (dataset.getOwnerOrg() != null) {
+                organization = findOrganization(dataset.getOwnerOrg());
+                if (organization == null) {
+                    sendValidationError(exchange, "package_create", "owner_org", "Organization does not exist");
+                    return;
+                }
+            }
+            created = gson.toJsonTree(storePackage(dataset, organization));
+        }
+        sendResult(exchange, "package_create", created);
+    }
+
+    private void organizationShow(HttpExchange exchange, Request request) throws IOException {
+        String id = request.get("id", "");
+        JsonElement found = null;
+        synchronized (lock) {
+            Organization organization = findOrganization(id);
+            if (organization != null) {
+                found = gson.toJsonTree(organization);
+            }
+        }
+        if (found == null) {
+            sendError(exchange, 404, "organization_show", "Not found", "Not Found Error");
+        } else {
+            sendResult(exchange, "organization_show", found);
+        }
+    }
+
+    private void organizationCreate(HttpExchange exchange, Request request) throws IOException {
+        String name = request.get("name", "");
+        if (name.isEmpty()) {
+            sendValidationError(exchange, "organization_create", "name", "Missing value");
+            return;
+        }
+        JsonElement created;
+        synchronized (lock) {
+            if (findOrganization(name) != null) {
+                sendValidationError(exchange, "organization_create", "name", "Group name already exists in database");
+                return;
+            }
+            created = gson.toJsonTree(newOrganization(name, request.get("id", null), request.get("title", name)));
+        }
+        sendResult(exchange, "organization_create", created);
+    }
+
+    /**
+     * resource_search with one or more query parameters as field:term. A resource is returned when the value of
+     * every field contains its term, ignoring case.
+     */
+    private void resourceSearch(HttpExchange exchange, Request request) throws IOException {
+        List<String> queries = request.getAll("query");
+        int offset = Integer.parseInt(request.get("offset", "0"));
+        int limit = Integer.parseInt(request.get("limit", String.valueOf(Integer.MAX_VALUE)));
+
+        JsonObject result = new JsonObject();
+        JsonArray results = new JsonArray();
+        int count = 0;
+        synchronized (lock) {
+            for (Package_ dataset : packages.values()) {
+                for (Resource resource : dataset.getResources()) {
+                    if (!matches(resource, queries)) {
+                        continue;
+                    }
+                    if (count >= offset && count - offset < limit) {
+                        results.add(gson.toJsonTree(resource));
+                    }
+                    count++;
+                }
+            }
+        }
+        result.addProperty("count", count);
+        result.add("results", results);
+        sendResult(exchange, "resource_search", result);
+    }
+
+    private static boolean matches(Resource resource, List<String> queries) {
+        for (String query : queries) {
+            int colon = query.indexOf(':');
+            if (colon <= 0) {
+                return false;
+            }
+            String term = query.substring(colon + 1).toLowerCase();
+            Object value;
+            switch (query.substring(0, colon)) {
+                case "id": value = resource.getId(); break;
+                case "name": value = resource.getName(); break;
+                case "description": value = resource.getDescription(); break;
+                case "format": value = resource.getFormat(); break;
+                case "url": value = resource.getUrl(); break;
+                case "hash": value = resource.getHash(); break;
+                case "mimetype": value = resource.getMimetype(); break;
+                case "package_id": value = resource.getPackageId(); break;
+                default: return false;
+            }
+            if (value == null || !value.toString().toLowerCase().contains(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resourceCreate(HttpExchange exchange, Request request) throws IOException {
+        String packageId = request.get("package_id", "");
+        JsonElement created;
+        synchronized (lock) {
+            Package_ dataset = findPackage(packageId);
+            if (dataset == null) {
+                sendValidationError(exchange, "resource_create", "package_id", "Not found: Dataset");
+                return;
+            }
+            created = gson.toJsonTree(storeResource(dataset, request.fields(), request.file()));
+        }
+        sendResult(exchange, "resource_create", created);
+    }
+
+    private void resourcePatch(HttpExchange exchange, Request request) throws IOException {
+        String id = request.get("id", "");
+        JsonElement patched;
+        synchronized (lock) {
+            StoredResource stored = resources.get(id);
+            if (stored == null) {
+                sendError(exchange, 404, "resource_patch", "Not found: Resource was not found.", "Not Found Error");
+                return;
+            }
+            Resource resource = stored.resource;
+            Map<String, String> fields = request.fields();
+            if (fields.containsKey("name")) {
+                resource.setName(fields.get("name"));
+            }
+            if (fields.containsKey("format")) {
+                resource.setFormat(fields.get("format"));
+            }
+            if (fields.containsKey("description")) {
+                resource.setDescription(fields.get("description"));
+            }
+            if (fields.containsKey("mimetype")) {
+                resource.setMimetype(fields.get("mimetype"));
+            }
+            if (fields.containsKey("hash")) {
+                resource.setHash(fields.get("hash"));
+            }
+            if (fields.containsKey("url")) {
+                resource.setUrl(fields.get("url"));
+            }
+            byte[] file = request.file();
+            if (file != null) {
+                setContent(stored, file);
+            }
+            String now = now();
+            resource.setLastModified(now);
+            Package_ dataset = findPackage(stored.packageId);
+            if (dataset != null) {
+                dataset.setMetadataModified(now);
+            }
+            patched = gson.toJsonTree(resource);
+        }
+        sendResult(exchange, "resource_patch", patched);
+    }
+
+    private Package_ storePackage(Package_ dataset, Organization organization) {
+        String now = now();
+        dataset.setId(UUID.randomUUID().toString());
+        dataset.setRevisionId(UUID.randomUUID().toString());
+        dataset.setMetadataCreated(now);
+        dataset.setMetadataModified(now);
+        dataset.setState("active");
+        dataset.setType("dataset");
+        if (dataset.getPrivate() == null) {
+            dataset.setPrivate(false);
+        }
+        if (organization != null) {
+            dataset.setOwnerOrg(organization.getId());
+            dataset.setOrganization(organization);
+        }
+        dataset.setResources(new ArrayList<>());
+        dataset.setNumResources(0);
+        if (dataset.getTags() == null) {
+            dataset.setTags(new ArrayList<>());
+        }
+        dataset.setNumTags(dataset.getTags().size());
+        packages.put(dataset.getName().toLowerCase(), dataset);
+        return dataset;
+    }
+
+    private Resource storeResource(Package_ dataset, Map<String, String> fields, byte[] file) {
+        String now = now();
+        Resource resource = new Resource();
+        resource.setId(UUID.randomUUID().toString());
+        resource.setPackageId(dataset.getId());
+        resource.setRevisionId(UUID.randomUUID().toString());
+        resource.setName(fields.get("name"));
+        resource.setDescription(fields.getOrDefault("description", ""));
+        resource.setFormat(fields.getOrDefault("format", ""));
+        resource.setMimetype(fields.get("mimetype"));
+        resource.setHash(fields.getOrDefault("hash", ""));
+        resource.setUrl(fields.getOrDefault("url", ""));
+        resource.setState("active");
+        resource.setCreated(now);
+        resource.setLastModified(now);
+        resource.setPosition(dataset.getResources().size());
+
+        StoredResource stored = new StoredResource(resource, dataset.getId());
+        if (file != null) {
+            setContent(stored, file);
+        }
+        resources.put(resource.getId(), stored);
+        dataset.getResources().add(resource);
+        dataset.setNumResources(dataset.getResources().size());
+        dataset.setMetadataModified(now);
+        return resource;
+    }
+
+    /**
+     * Store the file of a resource, served from a download url of this server as CKAN does with uploads
+     */
+    private void setContent(StoredResource stored, byte[] file) {
+        Resource resource = stored.resource;
+        stored.size = file.length;
+        stored.content = storeContent ? file : null;
+        resource.setSize((long) file.length);
+        resource.setUrlType("upload");
+        String fileName = resource.getName() != null ? resource.getName() : resource.getId();
+        try {
+            resource.setUrl(url + "/dataset/" + stored.packageId + "/resource/" + resource.getId()
+                    + "/download/" + URLEncoder.encode(fileName, "UTF-8").replace("+", "%20"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Organization newOrganization(String name, String id, String title) {
+        Organization organization = new Organization();
+        organization.setId(id != null && !id.isEmpty() ? id : UUID.randomUUID().toString());
+        organization.setName(name.toLowerCase());
+        organization.setTitle(title);
+        organization.setType("organization");
+        organization.setState("active");
+        organization.setIsOrganization(true);
+        organization.setApprovalStatus("approved");
+        organization.setCreated(now());
+        organizations.put(organization.getName(), organization);
+        return organization;
+    }
+
+    /**
+     * @return The package with that name or id, null if not found
+     */
+    private Package_ findPackage(String nameOrId) {
+        Package_ dataset = packages.get(nameOrId.toLowerCase());
+        if (dataset == null) {
+            for (Package_ candidate : packages.values()) {
+                if (nameOrId.equals(candidate.getId())) {
+                    return candidate;
+                }
+            }
+        }
+        return dataset;
+    }
+
+    /**
+     * @return The organization with that name or id, null if not found
+     */
+    private Organization findOrganization(String nameOrId) {
+        Organization organization = organizations.get(nameOrId.toLowerCase());
+        if (organization == null) {
+            for (Organization candidate : organizations.values()) {
+                if (nameOrId.equals(candidate.getId())) {
+                    return candidate;
+                }
+            }
+        }
+        return organization;
+    }
+
+    private static String now() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'000'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    private void sendResult(HttpExchange exchange, String action, JsonElement result) throws IOException {
+        JsonObject response = envelope(action, true);
+        response.add("result", result);
+        sendJson(exchange, 200, response);
+    }
+
+    private void sendValidationError(HttpExchange exchange, String action, String field, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        JsonArray messages = new JsonArray();
+        messages.add(message);
+        error.add(field, messages);
+        error.addProperty("__type", "Validation Error");
+        JsonObject response = envelope(action, false);
+        response.add("error", error);
+        sendJson(exchange, 409, response);
+    }
+
+    private void sendError(HttpExchange exchange, int status, String action, String message, String type) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("message", message);
+        error.addProperty("__type", type);
+        JsonObject response = envelope(action, false);
+        response.add("error", error);
+        sendJson(exchange, status, response);
+    }
+
+    private JsonObject envelope(String action, boolean success) {
+        JsonObject response = new JsonObject();
+        response.addProperty("help", url + "/api/3/action/help_show?name=" + action);
+        response.addProperty("success", success);
+        return response;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, JsonObject response) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+        send(exchange, status, response.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * A resource with its file
+     */
+    private static final class StoredResource {
+        private final Resource resource;
+        private final String packageId;
+        private byte[] content;
+        //-1 while the resource has no file uploaded
+        private long size = -1;
+
+        private StoredResource(Resource resource, String packageId) {
+            this.resource = resource;
+            this.packageId = packageId;
+        }
+    }
+
+    /**
+     * The parameters of a call, from the query string and from the body, sent as a multipart, a form or JSON
+     */
+    private static final class Request {
+        private final Map<String, List<String>> parameters = new LinkedHashMap<>();
+        private final byte[] body;
+        private byte[] file;
+
+        private Request(HttpExchange exchange, byte[] body) throws IOException {
+            this.body = body;
+            addQuery(exchange.getRequestURI().getRawQuery());
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType == null || body.length == 0) {
+                return;
+            }
+            if (contentType.startsWith("multipart/form-data")) {
+                MultipartForm form = MultipartForm.parse(contentType, body);
+                form.getFields().forEach(this::add);
+                file = form.getFile();
+            } else if (contentType.startsWith("application/x-www-form-urlencoded")) {
+                addQuery(new String(body, StandardCharsets.UTF_8));
+            } else if (text().startsWith("{")) {
+                //The handler sends package_create as JSON, the top level strings are the parameters of the other calls
+                try {
+                    for (Map.Entry<String, JsonElement> entry : gson.fromJson(text(), JsonObject.class).entrySet()) {
+                        if (entry.getValue().isJsonPrimitive()) {
+                            add(entry.getKey(), entry.getValue().getAsString());
+                        }
+                    }
+                } catch (JsonParseException e) {
+                    //Not a JSON object, only the action reading the whole body can tell
+                }
+            }
+        }
+
+        private void addQuery(String query) throws UnsupportedEncodingException {
+            if (query == null || query.isEmpty()) {
+                return;
+            }
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    add(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+
+        private void add(String name, String value) {
+            parameters.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+        }
+
+        private String get(String name, String defaultValue) {
+            List<String> values = parameters.get(name);
+            return values == null ? defaultValue : values.get(0);
+        }
+
+        private List<String> getAll(String name) {
+            List<String> values = parameters.get(name);
+            return values == null ? new ArrayList<>() : values;
+        }
+
+        /**
+         * @return The first value of each parameter
+         */
+        private Map<String, String> fields() {
+            Map<String, String> fields = new HashMap<>();
+            parameters.forEach((name, values) -> fields.put(name, values.get(0)));
+            return fields;
+        }
+
+        private byte[] file() {
+            return file;
+        }
+
+        private String text() {
+            return new String(body, StandardCharsets.UTF_8).trim();
+        }
+    }
+}
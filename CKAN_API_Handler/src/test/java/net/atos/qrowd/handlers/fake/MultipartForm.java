@@ -0,0 +1,161 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.handlers.fake;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The fields and the file of a multipart/form-data request, as sent by MultipartEntityBuilder.
+ * The whole body is held in memory, it is only meant for the requests of the fake server.
+ */
+final class MultipartForm {
+
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Map<String, String> fields = new HashMap<>();
+    private byte[] file;
+
+    private MultipartForm() {
+    }
+
+    /**
+     * @param contentType Content-Type header of the request, with the boundary
+     * @param body Body of the request
+     * @return The parts of the body
+     * @throws IOException If the body is not a well formed multipart
+     */
+    static MultipartForm parse(String contentType, byte[] body) throws IOException {
+        String boundary = boundary(contentType);
+        if (boundary == null) {
+            throw new IOException("No boundary in the content type " + contentType);
+        }
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        byte[] partEnd = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+
+        MultipartForm form = new MultipartForm();
+        int position = indexOf(body, delimiter, 0);
+        if (position < 0) {
+            throw new IOException("No part found in the body");
+        }
+        position += delimiter.length;
+        //The last delimiter is followed by "--"
+        while (position + 1 < body.length && !(body[position] == '-' && body[position + 1] == '-')) {
+            int headersStart = position + 2;
+            int headersEnd = indexOf(body, HEADER_END, headersStart);
+            if (headersEnd < 0) {
+                throw new IOException("Part without headers");
+            }
+            int contentEnd = indexOf(body, partEnd, headersEnd + HEADER_END.length);
+            if (contentEnd < 0) {
+                throw new IOException("Part without end");
+            }
+            String headers = new String(body, headersStart, headersEnd - headersStart, StandardCharsets.UTF_8);
+            form.add(headers, body, headersEnd + HEADER_END.length, contentEnd);
+            position = contentEnd + partEnd.length;
+        }
+        return form;
+    }
+
+    /**
+     * @return The value of a field, null if not sent
+     */
+    String get(String name) {
+        return fields.get(name);
+    }
+
+    /**
+     * @return Every field that is not a file
+     */
+    Map<String, String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return Content of the file sent in the upload or file parts, null if none was sent
+     */
+    byte[] getFile() {
+        return file;
+    }
+
+    private void add(String headers, byte[] body, int start, int end) {
+        String name = null;
+        boolean isFile = false;
+        for (String header : headers.split("\r\n")) {
+            if (!header.toLowerCase().startsWith("content-disposition:")) {
+                continue;
+            }
+            for (String parameter : header.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.startsWith("name=")) {
+                    name = unquote(parameter.substring(5));
+                } else if (parameter.startsWith("filename=")) {
+                    isFile = true;
+                }
+            }
+        }
+        if (name == null) {
+            return;
+        }
+        //The handler sends the same file in both the file and upload parts, one copy is enough
+        if (isFile || "upload".equals(name) || "file".equals(name)) {
+            byte[] content = new byte[end - start];
+            System.arraycopy(body, start, content, 0, content.length);
+            file = content;
+        } else {
+            fields.put(name, new String(body, start, end - start, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String boundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("boundary=")) {
+                return unquote(parameter.substring(9));
+            }
+        }
+        return null;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        int last = data.length - pattern.length;
+        for (int i = from; i <= last; i++) {
+            if (data[i] != pattern[0]) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
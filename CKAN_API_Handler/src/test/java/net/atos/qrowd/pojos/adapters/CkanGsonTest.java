@@ -0,0 +1,166 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.pojos.adapters;
+
+import com.google.gson.Gson;
+import net.atos.qrowd.handlers.CkanResponseReader;
+import net.atos.qrowd.pojos.CkanFullList;
+import net.atos.qrowd.pojos.Organization;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.pojos.ResourceResponse;
+import net.atos.qrowd.pojos.Tag;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The hand-written adapters must bind the pojos exactly as the reflective adapters of Gson do
+ */
+public class CkanGsonTest {
+
+    private static final Gson reflective = new Gson();
+
+    private static final String SEARCH_RESPONSE = "{\"help\": \"http://ckan/api/3/action/help_show?name=package_search\", \"success\": true, "
+            + "\"result\": {\"count\": 2, \"sort\": \"name asc\", \"facets\": {}, \"search_facets\": {}, \"results\": ["
+            + "{\"license_title\": \"CC-BY\", \"maintainer\": null, \"relationships_as_object\": [], \"private\": false, "
+            + "\"maintainer_email\": null, \"num_tags\": 1, \"id\": \"p1\", \"metadata_created\": \"2018-05-02T10:11:12.123456\", "
+            + "\"metadata_modified\": \"2018-05-03T10:11:12.123456\", \"author\": \"someone\", \"author_email\": null, \"state\": \"active\", "
+            + "\"version\": null, \"creator_user_id\": \"u1\", \"type\": \"dataset\", \"num_resources\": 1, "
+            + "\"resources\": [{\"mimetype\": \"text/csv\", \"cache_url\": null, \"hash\": \"abc\", \"description\": \"\", \"name\": \"data.csv\", "
+            + "\"format\": \"CSV\", \"url\": \"http://ckan/data.csv\", \"datastore_active\": false, \"cache_last_updated\": null, "
+            + "\"package_id\": \"p1\", \"created\": \"2018-05-02T10:11:12.123456\", \"state\": \"active\", \"mimetype_inner\": null, "
+            + "\"last_modified\": null, \"position\": 0, \"revision_id\": \"r1\", \"url_type\": \"upload\", \"id\": \"res1\", "
+            + "\"resource_type\": null, \"size\": 1024}], "
+            + "\"tags\": [{\"vocabulary_id\": null, \"state\": \"active\", \"display_name\": \"traffic\", \"id\": \"t1\", \"name\": \"traffic\"}], "
+            + "\"groups\": [{\"name\": \"g1\"}], \"license_id\": \"cc-by\", \"relationships_as_subject\": [], "
+            + "\"organization\": {\"description\": \"\", \"created\": \"2018-01-01T00:00:00.000000\", \"title\": \"Org\", \"name\": \"org\", "
+            + "\"is_organization\": true, \"state\": \"active\", \"image_url\": \"\", \"revision_id\": \"r0\", \"type\": \"organization\", "
+            + "\"id\": \"o1\", \"approval_status\": \"approved\"}, "
+            + "\"name\": \"package_1\", \"isopen\": true, \"url\": null, \"notes\": \"Notes\", \"owner_org\": \"o1\", "
+            + "\"extras\": [{\"key\": \"source\", \"value\": \"x\"}], \"license_url\": \"http://license\", \"title\": \"Package 1\", \"revision_id\": \"r2\"}, "
+            + "{\"id\": \"p2\", \"name\": \"package_2\", \"resources\": [], \"tags\": [], \"organization\": null, \"private\": true, "
+            + "\"unknown_field\": {\"nested\": [1, 2]}}"
+            + "]}}";
+
+    private static final String RESOURCE_SEARCH_RESPONSE = "{\"help\": \"help\", \"success\": true, \"result\": {\"count\": 1, \"results\": ["
+            + "{\"id\": \"res1\", \"package_id\": \"p1\", \"name\": \"data.csv\", \"size\": null, \"hash\": \"\", \"position\": 3, "
+            + "\"mimetype\": \"text/csv\", \"last_modified\": \"2018-05-03T10:11:12.123456\", \"unknown\": [true]}]}}";
+
+    @Test
+    public void packagesAreWrittenAsByReflection() {
+        Package_ dataset = newPackage();
+        assertEquals(reflective.toJson(dataset), CkanGson.get().toJson(dataset));
+
+        //Every field null, and an empty package
+        assertEquals(reflective.toJson(new Package_()), CkanGson.get().toJson(new Package_()));
+        assertEquals(reflective.toJson(new Resource()), CkanGson.get().toJson(new Resource()));
+    }
+
+    @Test
+    public void searchResponsesAreReadAsByReflection() throws IOException {
+        CkanFullList bound = CkanGson.get().fromJson(SEARCH_RESPONSE, CkanFullList.class);
+        CkanFullList expected = reflective.fromJson(SEARCH_RESPONSE, CkanFullList.class);
+        assertEquals(2, bound.getPackage().getPackages().size());
+        assertEquals(reflective.toJsonTree(expected), reflective.toJsonTree(bound));
+
+        //The packages streamed from the response are the same ones
+        List<Package_> streamed = new ArrayList<>();
+        int found = CkanResponseReader.readPackages(new ByteArrayInputStream(SEARCH_RESPONSE.getBytes(StandardCharsets.UTF_8)),
+                CkanGson.get(), streamed::add);
+        assertEquals(2, found);
+        assertEquals(reflective.toJsonTree(expected.getPackage().getPackages()), reflective.toJsonTree(streamed));
+
+        //Written back, each package reads as it was
+        for (Package_ dataset : streamed) {
+            Package_ again = CkanGson.get().fromJson(CkanGson.get().toJson(dataset), Package_.class);
+            assertEquals(reflective.toJsonTree(dataset), reflective.toJsonTree(again));
+        }
+    }
+
+    @Test
+    public void resourceSearchResponsesAreReadAsByReflection() {
+        ResourceResponse bound = CkanGson.get().fromJson(RESOURCE_SEARCH_RESPONSE, ResourceResponse.class);
+        ResourceResponse expected = reflective.fromJson(RESOURCE_SEARCH_RESPONSE, ResourceResponse.class);
+        assertNotNull(bound.getResult().getResults().get(0).getId());
+        assertEquals(reflective.toJsonTree(expected), reflective.toJsonTree(bound));
+    }
+
+    /**
+     * @return A package with every kind of field set, and some of them null
+     */
+    private static Package_ newPackage() {
+        Organization organization = new Organization();
+        organization.setId("o1");
+        organization.setName("org");
+        organization.setTitle("Org");
+        organization.setIsOrganization(true);
+        organization.setCreated("2018-01-01T00:00:00.000000");
+
+        Tag tag = new Tag();
+        tag.setId("t1");
+        tag.setName("traffic");
+        tag.setDisplayName("traffic");
+        tag.setState("active");
+
+        Resource resource = new Resource();
+        resource.setId("res1");
+        resource.setPackageId("p1");
+        resource.setName("data.csv");
+        resource.setFormat("CSV");
+        resource.setSize(1024L);
+        resource.setHash("abc");
+        resource.setMimetype("text/csv");
+        resource.setPosition(0);
+        resource.setUrl("http://ckan/data.csv");
+
+        Resource empty = new Resource();
+        empty.setId("res2");
+
+        Map<String, Object> extra = new LinkedHashMap<>();
+        extra.put("key", "source");
+        extra.put("value", "x");
+
+        Package_ dataset = new Package_();
+        dataset.setId("p1");
+        dataset.setName("package_1");
+        dataset.setTitle("Package 1");
+        dataset.setPrivate(false);
+        dataset.setIsopen(true);
+        dataset.setNumTags(1);
+        dataset.setNumResources(2);
+        dataset.setMetadataCreated("2018-05-02T10:11:12.123456");
+        dataset.setOwnerOrg("o1");
+        dataset.setOrganization(organization);
+        dataset.setResources(Arrays.asList(resource, empty));
+        dataset.setTags(Collections.singletonList(tag));
+        dataset.setExtras(Collections.singletonList(extra));
+        dataset.setGroups(new ArrayList<>());
+        //Left null: maintainer, version, url, notes...
+        return dataset;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.services;
+
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CKAN_Async_API_Handler;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+import java.io.IOException;
+
+@Tags({"ckan","client","web service"})
+@CapabilityDescription("Provides a CKAN client, with its pool of connections, shared by all the processors that use the same CKAN instance and API key.")
+public interface CKANClientService extends ControllerService {
+
+    /**
+     * Get the client created when the service was enabled. The same instance is returned to every processor
+     * referencing this service, so it must not be closed by them.
+     * @return CKAN_API_Handler connected to the CKAN instance of this service
+     */
+    CKAN_API_Handler getHandler();
+
+    /**
+     * Get the non-blocking client of this service, started the first time it is asked for, with a pool of connections of
+     * the same size as the one of the handler. It is shared the same way, so it must not be closed by the processors either.
+     * @return CKAN_Async_API_Handler connected to the CKAN instance of this service
+     * @throws IOException If the client cannot be started
+     */
+    CKAN_Async_API_Handler getAsyncHandler() throws IOException;
+
+}
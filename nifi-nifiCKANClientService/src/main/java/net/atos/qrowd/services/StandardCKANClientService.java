@@ -0,0 +1,180 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.services;
+
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CKAN_Async_API_Handler;
+import net.atos.qrowd.handlers.ConnectionPoolSettings;
+import net.atos.qrowd.handlers.MetadataCacheSettings;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"ckan","client","web service"})
+@CapabilityDescription("Creates a single CKAN client, with a pool of keep-alive connections, when the service is enabled. " +
+        "Every processor referencing this service reuses that client instead of building its own.")
+public class StandardCKANClientService extends AbstractControllerService implements CKANClientService {
+
+    public static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to connect to")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(true)
+            .build();
+    public static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .sensitive(true)
+            .build();
+    public static final PropertyDescriptor metadata_cache_ttl = new PropertyDescriptor
+            .Builder().name("metadata_cache_ttl")
+            .displayName("Metadata Cache TTL")
+            .description("Time the organizations and packages found in CKAN are remembered, so the next uploads to them do not look them up again, by any processor using this service. " +
+                    "Set to 0 secs to disable the cache")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 mins")
+            .required(true)
+            .build();
+    public static final PropertyDescriptor metadata_cache_size = new PropertyDescriptor
+            .Builder().name("metadata_cache_size")
+            .displayName("Metadata Cache Size")
+            .description("Maximum number of organizations and packages remembered, the least recently used is forgotten first")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(MetadataCacheSettings.DEFAULT_MAX_ENTRIES))
+            .required(true)
+            .build();
+    public static final PropertyDescriptor max_total_connections = new PropertyDescriptor
+            .Builder().name("max_total_connections")
+            .displayName("Max Total Connections")
+            .description("Maximum number of connections to CKAN kept open in the connection pool, shared by all the processors using this service")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(ConnectionPoolSettings.DEFAULT_MAX_TOTAL_CONNECTIONS))
+            .required(true)
+            .build();
+    public static final PropertyDescriptor max_connections_per_route = new PropertyDescriptor
+            .Builder().name("max_connections_per_route")
+            .displayName("Max Connections Per Route")
+            .description("Maximum number of connections kept open in the connection pool for a single host")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(ConnectionPoolSettings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE))
+            .required(true)
+            .build();
+    public static final PropertyDescriptor connection_timeout = new PropertyDescriptor
+            .Builder().name("connection_timeout")
+            .displayName("Connection Timeout")
+            .description("Maximum time to wait for a connection to CKAN to be established or to be available in the pool")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 secs")
+            .required(true)
+            .build();
+    public static final PropertyDescriptor socket_timeout = new PropertyDescriptor
+            .Builder().name("socket_timeout")
+            .displayName("Socket Timeout")
+            .description("Maximum time to wait for data from CKAN once the connection is established")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("60 secs")
+            .required(true)
+            .build();
+
+    private static final List<PropertyDescriptor> descriptors;
+
+    static {
+        final List<PropertyDescriptor> props = new ArrayList<>();
+        props.add(CKAN_url);
+        props.add(api_key);
+        props.add(metadata_cache_ttl);
+        props.add(metadata_cache_size);
+        props.add(max_total_connections);
+        props.add(max_connections_per_route);
+        props.add(connection_timeout);
+        props.add(socket_timeout);
+        descriptors = Collections.unmodifiableList(props);
+    }
+
+    private volatile CKAN_API_Handler handler;
+    //Only started when a processor asks for it, with the settings of the handler
+    private volatile CKAN_Async_API_Handler asyncHandler;
+    private volatile String url;
+    private volatile String apiKey;
+    private volatile ConnectionPoolSettings poolSettings;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        url = context.getProperty(CKAN_url).getValue();
+        apiKey = context.getProperty(api_key).getValue();
+
+        poolSettings = new ConnectionPoolSettings(
+                context.getProperty(max_total_connections).asInteger(),
+                context.getProperty(max_connections_per_route).asInteger(),
+                context.getProperty(connection_timeout).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(socket_timeout).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+
+        MetadataCacheSettings cacheSettings = new MetadataCacheSettings(
+                context.getProperty(metadata_cache_ttl).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(metadata_cache_size).asInteger());
+
+        getLogger().info("Creating CKAN client for {}", new Object[]{url});
+        handler = new CKAN_API_Handler(url, apiKey, poolSettings, cacheSettings);
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (handler != null) {
+            handler.close();
+            handler = null;
+        }
+        synchronized (this) {
+            if (asyncHandler != null) {
+                asyncHandler.close();
+                asyncHandler = null;
+            }
+        }
+    }
+
+    @Override
+    public CKAN_API_Handler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public synchronized CKAN_Async_API_Handler getAsyncHandler() throws IOException {
+        if (asyncHandler == null) {
+            getLogger().info("Starting the non-blocking CKAN client for {}", new Object[]{url});
+            asyncHandler = new CKAN_Async_API_Handler(url, apiKey, poolSettings);
+        }
+        return asyncHandler;
+    }
+}
@@ -8,7 +8,7 @@ import java.io.IOException;
 public class CKANUploader {
     public static void main(String[] args) {
 
-        CKAN_API_Handler ckanhandler = new CKAN_API_Handler("http://130.206.127.63","c641640b-eebf-4cbe-a3e3-5050a964f90d","testSpecial","testorg","test_description", false);
+        CKAN_API_Handler ckanhandler = new CKAN_API_Handler("http://130.206.127.63","c641640b-eebf-4cbe-a3e3-5050a964f90d");
         try {
             Package_ p = ckanhandler.getPackageByName("circoscrizioni");
             System.out.println(p);
@@ -16,10 +16,10 @@ public class CKANUploader {
             e.printStackTrace();
         }
 
-//        if(!ckanhandler.packageExists())
+//        if(!ckanhandler.packageExists("testSpecial"))
 //        {
-//            ckanhandler.createPackage();
+//            ckanhandler.createPackage("testSpecial","testorg","test_description",false,null);
 //        }
-//        ckanhandler.uploadFile("/home/rruizs/test.txt");
+//        ckanhandler.createOrUpdateResource("/home/rruizs/test.txt","testSpecial");
     }
 }
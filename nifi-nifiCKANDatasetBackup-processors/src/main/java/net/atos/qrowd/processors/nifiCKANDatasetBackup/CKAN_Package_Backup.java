@@ -17,54 +17,103 @@
 package net.atos.qrowd.processors.nifiCKANDatasetBackup;
 
 import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.ConnectionPoolSettings;
+import net.atos.qrowd.handlers.TempFileStore;
 import net.atos.qrowd.pojos.Package_;
 import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.services.CKANClientService;
 import org.apache.nifi.annotation.behavior.EventDriven;
+import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
-import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.LogLevel;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 @EventDriven
-@SupportsBatching
+@InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
+@Stateful(scopes = Scope.CLUSTER, description = "In incremental mode, one entry per package, by id, with its metadata_modified and " +
+        "a short digest of the fingerprint (last modified, hash, size and url) of each of its resources, as of their last backup. " +
+        "While the catalog is backed up, the key of the last package backed up, to resume from the next one")
 @Tags({"ckan","backup","web service","request","local"})
-@CapabilityDescription("Nifi Processor that will look into CKAN for a package named as the filename of the flowfile. If not found, output flowfile to NOT_FOUND relationship. If found it will create a backup of the dataset and all its resources with a new name (dated/timestamped).")
+@CapabilityDescription("Nifi Processor that will look into CKAN for a package named as the filename of the flowfile. If not found, output flowfile to NOT_FOUND relationship. If found it will create a backup of the dataset and all its resources with a new name (dated/timestamped). " +
+        "It can also back up every package of the CKAN instance, page by page, each time it runs or, with an incoming connection, each time it receives a flowfile. " +
+        "The backups it creates are tagged with " + CKAN_Package_Backup.BACKUP_TAG + " and left out of the backups of the catalog.")
 @ReadsAttribute(attribute = "filename", description = "The filename to use when writing the FlowFile to disk.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.backup.package", description = "Name of the package created as backup"),
+        @WritesAttribute(attribute = "filename", description = "Name of the archive, the name of the backup with the .zip extension, only with the ZIP Archive destination"),
+        @WritesAttribute(attribute = "mime.type", description = "Set to application/zip, only with the ZIP Archive destination"),
+        @WritesAttribute(attribute = "ckan.backup.resources.total", description = "Number of resources of the package backed up"),
+        @WritesAttribute(attribute = "ckan.backup.resources.copied", description = "Number of resources successfully copied to the backup package"),
+        @WritesAttribute(attribute = "ckan.backup.resources.failed", description = "Number of resources that could not be copied"),
+        @WritesAttribute(attribute = "ckan.backup.resources.failed.names", description = "Comma-separated names of the resources that could not be copied, only when any failed"),
+        @WritesAttribute(attribute = "ckan.backup.resources.unchanged", description = "Number of resources not copied because they did not change since the last backup, only in incremental mode"),
+        @WritesAttribute(attribute = "ckan.backup.source.package", description = "Name of the package backed up, only when backing up the catalog"),
+        @WritesAttribute(attribute = "ckan.backup.unchanged", description = "Set to true when no backup was made because the package did not change, only in incremental mode")
+})
 public class CKAN_Package_Backup extends AbstractProcessor {
 
     private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
             .Builder().name("CKAN_url")
             .displayName("CKAN Url")
-            .description("Hostname of the CKAN instance to write to")
+            .description("Hostname of the CKAN instance to write to. Not needed when a CKAN Client Service is set")
             .addValidator(StandardValidators.URL_VALIDATOR)
-            .required(true)
+            .required(false)
             .build();
     private static final PropertyDescriptor api_key = new PropertyDescriptor
             .Builder().name("Api_Key")
             .displayName("File Api_Key")
-            .description("Api Key to be used to interact with CKAN")
+            .description("Api Key to be used to interact with CKAN. Not needed when a CKAN Client Service is set")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
-            .required(true)
+            .required(false)
             .sensitive(true)
             .build();
     private static final PropertyDescriptor package_name = new PropertyDescriptor
             .Builder().name("package_name")
             .displayName("Name of the package to backup")
-            .description("Name of the package to be backed up")
+            .description("Name of the package to be backed up. Required unless the whole catalog is backed up")
             .addValidator(Validator.VALID)
-            .required(true)
+            .required(false)
             .build();
     private static final PropertyDescriptor tag_list = new PropertyDescriptor
             .Builder().name("tag_list")
@@ -73,6 +122,213 @@ public class CKAN_Package_Backup extends AbstractProcessor {
             .addValidator(Validator.VALID)
             .required(false)
             .build();
+    private static final PropertyDescriptor ckan_client_service = new PropertyDescriptor
+            .Builder().name("ckan_client_service")
+            .displayName("CKAN Client Service")
+            .description("Controller Service providing the CKAN client shared with other processors. When set, the CKAN Url, Api_Key and connection pool properties of this processor are ignored")
+            .identifiesControllerService(CKANClientService.class)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor resource_copy_parallelism = new PropertyDescriptor
+            .Builder().name("resource_copy_parallelism")
+            .displayName("Resource Copy Parallelism")
+            .description("Maximum number of resources of a package copied at the same time. Each copy uses a connection of the pool " +
+                    "for the download and another for the upload, so the pool should allow twice as many connections to CKAN")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .required(true)
+            .build();
+    static final AllowableValue COPY_TEMP_FILE = new AllowableValue("Temporary File", "Temporary File",
+            "Each resource is downloaded to a temporary file and then uploaded from it");
+    static final AllowableValue COPY_STREAMING = new AllowableValue("Streaming", "Streaming",
+            "Each resource is uploaded while it is downloaded, without storing it on the local disk");
+    static final AllowableValue COPY_LINK = new AllowableValue("Link", "Link",
+            "No file is copied, each resource of the backup links to the url of the original resource. " +
+                    "Only suitable when the files of the original resources are kept elsewhere");
+    static final AllowableValue COPY_PIPELINE = new AllowableValue("Pipeline", "Pipeline",
+            "The resources are downloaded to temporary files, optionally checksummed, and uploaded by separate stages connected by bounded queues, " +
+                    "so the next resources are downloaded while the current one is uploaded");
+    static final AllowableValue SCOPE_PACKAGE = new AllowableValue("Single Package", "Single Package",
+            "The package named in the properties is backed up when a flowfile is received");
+    static final AllowableValue SCOPE_CATALOG = new AllowableValue("Full Catalog", "Full Catalog",
+            "Every package of the CKAN instance, but the backups, is backed up each time the processor runs or, with an incoming connection, " +
+                    "each time a flowfile is received, the flowfile is then dropped. A flowfile is output for each package");
+    private static final PropertyDescriptor backup_scope = new PropertyDescriptor
+            .Builder().name("backup_scope")
+            .displayName("Backup Scope")
+            .description("Packages backed up by the processor")
+            .allowableValues(SCOPE_PACKAGE, SCOPE_CATALOG)
+            .defaultValue(SCOPE_PACKAGE.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor catalog_page_size = new PropertyDescriptor
+            .Builder().name("catalog_page_size")
+            .displayName("Catalog Page Size")
+            .description("Number of packages read from CKAN at a time when backing up the catalog. Only the packages of a page are kept in memory, " +
+                    "and the backup resumes from the last page started if it is interrupted")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor package_parallelism = new PropertyDescriptor
+            .Builder().name("package_parallelism")
+            .displayName("Package Parallelism")
+            .description("Maximum number of packages of the catalog backed up at the same time, each of them copying up to Resource Copy Parallelism resources. " +
+                    "Archives are always written one package after the other")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .required(true)
+            .build();
+    static final AllowableValue DESTINATION_CKAN = new AllowableValue("CKAN Package", "CKAN Package",
+            "The backup is a new timestamped package in CKAN, with a copy of every resource");
+    static final AllowableValue DESTINATION_ZIP = new AllowableValue("ZIP Archive", "ZIP Archive",
+            "The backup is written as a ZIP archive, with the metadata of the package and the file of every resource, to the content of the flowfile");
+    private static final PropertyDescriptor backup_destination = new PropertyDescriptor
+            .Builder().name("backup_destination")
+            .displayName("Backup Destination")
+            .description("Where the backup of the package is stored. With ZIP Archive nothing is written to CKAN and the archive can be stored by the next processors")
+            .allowableValues(DESTINATION_CKAN, DESTINATION_ZIP)
+            .defaultValue(DESTINATION_CKAN.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor resource_copy_mode = new PropertyDescriptor
+            .Builder().name("resource_copy_mode")
+            .displayName("Resource Copy Mode")
+            .description("How the resources are copied to the backup package. Streaming needs no local disk, whatever the size of the resources. " +
+                    "Link only copies the metadata of the resources")
+            .allowableValues(COPY_TEMP_FILE, COPY_STREAMING, COPY_LINK, COPY_PIPELINE)
+            .defaultValue(COPY_TEMP_FILE.getValue())
+            .required(true)
+            .build();
+    static final AllowableValue THREADS_PLATFORM = new AllowableValue("Platform Threads", "Platform Threads",
+            "Each copy runs on a thread of the operating system");
+    static final AllowableValue THREADS_VIRTUAL = new AllowableValue("Virtual Threads", "Virtual Threads",
+            "Each copy runs on a virtual thread, so the parallelism can be raised to thousands of copies. Needs Java 21 or later, " +
+                    "platform threads are used on older versions. Not yet verified on Java 21, only the fallback to platform threads is tested");
+    private static final PropertyDescriptor copy_threads = new PropertyDescriptor
+            .Builder().name("copy_threads")
+            .displayName("Copy Threads")
+            .description("Kind of threads copying the resources and packages, and running the stages of the pipelines. With virtual threads each copy gets " +
+                    "a new thread, which costs almost nothing while it waits for CKAN. Either way the copies at the same time are bounded by the " +
+                    "parallelism properties and by the connection pool")
+            .allowableValues(THREADS_PLATFORM, THREADS_VIRTUAL)
+            .defaultValue(THREADS_PLATFORM.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor streaming_buffer_size = new PropertyDescriptor
+            .Builder().name("streaming_buffer_size")
+            .displayName("Streaming Buffer Size")
+            .description("Size of the buffer between the download and the upload of each resource copied in Streaming mode")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("64 KB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor pipeline_queue_size = new PropertyDescriptor
+            .Builder().name("pipeline_queue_size")
+            .displayName("Pipeline Queue Size")
+            .description("Maximum number of resources downloaded, or being downloaded, ahead of the upload in Pipeline mode. " +
+                    "When the upload is slower than the download, the download waits once this number of resources are waiting to be uploaded. " +
+                    "With 1 the next resource is downloaded while the current one is uploaded")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("2")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor pipeline_prefetch_size = new PropertyDescriptor
+            .Builder().name("pipeline_prefetch_size")
+            .displayName("Pipeline Prefetch Size")
+            .description("Maximum size of the resources downloaded ahead of the upload in Pipeline mode. The download of the next resource waits " +
+                    "until it fits, a bigger resource is only downloaded once all the previous ones have been uploaded. When CKAN gives no size, " +
+                    "or a wrong one, the download waits for room as it writes the file")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("100 MB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor pipeline_checksum = new PropertyDescriptor
+            .Builder().name("pipeline_checksum")
+            .displayName("Pipeline Checksum")
+            .description("Compute the SHA-256 of each resource in Pipeline mode, in a stage of its own, and store it as the hash of the copy")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor temp_directory = new PropertyDescriptor
+            .Builder().name("temp_directory")
+            .displayName("Temporary Directory")
+            .description("Directory where the resources copied in Temporary File and Pipeline modes are stored while they are sent to CKAN. Each processor uses its own subdirectory, " +
+                    "emptied when the processor is started. Defaults to java.io.tmpdir")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .required(false)
+            .build();
+    private static final PropertyDescriptor temp_max_size = new PropertyDescriptor
+            .Builder().name("temp_max_size")
+            .displayName("Max Temporary Storage Size")
+            .description("Maximum size of the resources stored at the same time in the temporary directory. " +
+                    "Resources that would exceed it are not copied")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 GB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor max_total_connections = new PropertyDescriptor
+            .Builder().name("max_total_connections")
+            .displayName("Max Total Connections")
+            .description("Maximum number of connections to CKAN kept open in the connection pool")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(ConnectionPoolSettings.DEFAULT_MAX_TOTAL_CONNECTIONS))
+            .required(true)
+            .build();
+    private static final PropertyDescriptor max_connections_per_route = new PropertyDescriptor
+            .Builder().name("max_connections_per_route")
+            .displayName("Max Connections Per Route")
+            .description("Maximum number of connections kept open in the connection pool for a single host")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(ConnectionPoolSettings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE))
+            .required(true)
+            .build();
+    private static final PropertyDescriptor connection_timeout = new PropertyDescriptor
+            .Builder().name("connection_timeout")
+            .displayName("Connection Timeout")
+            .description("Maximum time to wait for a connection to CKAN to be established or to be available in the pool")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 secs")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor socket_timeout = new PropertyDescriptor
+            .Builder().name("socket_timeout")
+            .displayName("Socket Timeout")
+            .description("Maximum time to wait for data from CKAN once the connection is established")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("60 secs")
+            .required(true)
+            .build();
+
+    private static final PropertyDescriptor incremental_backup = new PropertyDescriptor
+            .Builder().name("incremental_backup")
+            .displayName("Incremental Backup")
+            .description("Only copy the resources modified since the last backup of the package, as recorded in the state of the processor. " +
+                    "When the package has not been modified at all no backup package is created")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+
+    //Tag added to the backup packages created in CKAN, so the backups of the catalog leave them out
+    static final String BACKUP_TAG = "ckan_backup";
+
+    //Key of the state holding the key of the last package backed up, while a backup of the catalog is in progress
+    private static final String STATE_CATALOG_CURSOR = "catalog.cursor";
+    //Start of the next page, kept by the previous versions of the processor, which paged the catalog by offset
+    private static final String LEGACY_STATE_CATALOG_START = "catalog.next_start";
+    //Key of the state holding the metadata_modified of the package in its last complete backup, after the id of the package,
+    //as kept by the previous versions of the processor with one more key per resource. They are removed as the packages are backed up again
+    private static final String LEGACY_STATE_METADATA_MODIFIED = ".metadata_modified";
+    //Separates the metadata_modified of a package from the digests of its resources in the state of the package
+    private static final char STATE_SEPARATOR = '|';
+    //Characters of base64 kept from the digest of the fingerprint of a resource, 72 bits
+    private static final int FINGERPRINT_DIGEST_LENGTH = 12;
+    //Most backups of the same package started in the same second that get their own package
+    private static final int MAX_BACKUP_NAME_SUFFIX = 1000;
+    //Names of the backup packages remembered as taken
+    private static final int MAX_BACKUP_NAMES = 1000;
 
     private static final Relationship REL_BACKUP_CREATED = new Relationship.Builder()
             .name("BACKUP_SUCCESS")
@@ -92,13 +348,72 @@ public class CKAN_Package_Backup extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    private volatile CKAN_API_Handler ckan_api_handler;
+    //False when the handler is provided by the CKAN client service, which is in charge of closing it
+    private volatile boolean ownsHandler;
+    //Threads copying the resources of the packages being backed up at the same time, a bounded pool or a virtual thread per copy
+    private volatile ExecutorService copyExecutor;
+    //Maximum number of resources of a package copied at the same time
+    private volatile int resourceCopyParallelism;
+    //Connections of the pool of the handler, taken by each copy so the copies of all the packages never wait for a connection
+    private volatile Semaphore connectionPermits;
+    //Connections used at the same time by a copy of a resource
+    private volatile int connectionsPerCopy;
+    //Threads backing up the packages of the catalog, only when copying them to CKAN
+    private volatile ExecutorService packageExecutor;
+    //Packages of the catalog backed up at the same time, also bounded when each package gets its own virtual thread
+    private volatile Semaphore packagePermits;
+    //Threads of the stages of the pipelines
+    private volatile ThreadFactory pipelineThreads;
+    //True when the copies run on virtual threads
+    private volatile boolean virtualThreads;
+    private volatile boolean catalogScope;
+    private volatile String copyMode;
+    private volatile int streamingBufferSize;
+    //Only used in Temporary File and Pipeline modes
+    private volatile TempFileStore tempFileStore;
+    private volatile int pipelineQueueSize;
+    private volatile long pipelinePrefetchSize;
+    private volatile boolean pipelineChecksum;
+    private volatile boolean incremental;
+    private volatile boolean archiveDestination;
+    private final Object stateLock = new Object();
+    //Held by the task backing up the catalog, concurrent tasks would back up the same packages
+    private final Lock catalogLock = new ReentrantLock();
+    //Backup packages created, or being created, by the tasks of this processor recently
+    private final Set<String> backupNames = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_BACKUP_NAMES;
+        }
+    }));
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(ckan_client_service);
         descriptors.add(CKAN_url);
         descriptors.add(api_key);
+        descriptors.add(backup_scope);
         descriptors.add(package_name);
         descriptors.add(tag_list);
+        descriptors.add(backup_destination);
+        descriptors.add(incremental_backup);
+        descriptors.add(catalog_page_size);
+        descriptors.add(package_parallelism);
+        descriptors.add(resource_copy_parallelism);
+        descriptors.add(copy_threads);
+        descriptors.add(resource_copy_mode);
+        descriptors.add(streaming_buffer_size);
+        descriptors.add(pipeline_queue_size);
+        descriptors.add(pipeline_prefetch_size);
+        descriptors.add(pipeline_checksum);
+        descriptors.add(temp_directory);
+        descriptors.add(temp_max_size);
+        descriptors.add(max_total_connections);
+        descriptors.add(max_connections_per_route);
+        descriptors.add(connection_timeout);
+        descriptors.add(socket_timeout);
 
         this.descriptors = Collections.unmodifiableList(descriptors);
 
@@ -119,8 +434,157 @@ public class CKAN_Package_Backup extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final boolean serviceSet = validationContext.getProperty(ckan_client_service).isSet();
+        final boolean connectionSet = validationContext.getProperty(CKAN_url).isSet() && validationContext.getProperty(api_key).isSet();
+        if (!serviceSet && !connectionSet) {
+            results.add(new ValidationResult.Builder()
+                    .subject(ckan_client_service.getDisplayName())
+                    .valid(false)
+                    .explanation("either a CKAN Client Service or both the CKAN Url and the Api_Key must be set")
+                    .build());
+        }
+        if (SCOPE_PACKAGE.getValue().equals(validationContext.getProperty(backup_scope).getValue())
+                && !validationContext.getProperty(package_name).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(package_name.getDisplayName())
+                    .valid(false)
+                    .explanation("the name of the package is required to back up a single package")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        copyMode = context.getProperty(resource_copy_mode).getValue();
+        streamingBufferSize = context.getProperty(streaming_buffer_size).asDataSize(DataUnit.B).intValue();
+        incremental = context.getProperty(incremental_backup).asBoolean();
+        archiveDestination = DESTINATION_ZIP.getValue().equals(context.getProperty(backup_destination).getValue());
+        //The archive is written while the resources are downloaded, it needs no temporary files
+        boolean storesFiles = COPY_TEMP_FILE.getValue().equals(copyMode) || COPY_PIPELINE.getValue().equals(copyMode);
+        tempFileStore = storesFiles && !archiveDestination ? createTempFileStore(context) : null;
+        pipelineQueueSize = context.getProperty(pipeline_queue_size).asInteger();
+        pipelinePrefetchSize = context.getProperty(pipeline_prefetch_size).asDataSize(DataUnit.B).longValue();
+        pipelineChecksum = context.getProperty(pipeline_checksum).asBoolean();
+
+        virtualThreads = THREADS_VIRTUAL.getValue().equals(context.getProperty(copy_threads).getValue());
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            getLogger().warn("Virtual threads are not supported by this version of Java, using platform threads");
+            virtualThreads = false;
+        }
+        resourceCopyParallelism = context.getProperty(resource_copy_parallelism).asInteger();
+        catalogScope = SCOPE_CATALOG.getValue().equals(context.getProperty(backup_scope).getValue());
+        //Each package backed up at the same time, by a concurrent task or a thread of the catalog, copies its own resources
+        final int concurrentPackages = catalogScope ? context.getProperty(package_parallelism).asInteger() : context.getMaxConcurrentTasks();
+        copyExecutor = newExecutor(resourceCopyParallelism * concurrentPackages, "copy");
+        final int packageParallelism = context.getProperty(package_parallelism).asInteger();
+        if (catalogScope && !DESTINATION_ZIP.getValue().equals(context.getProperty(backup_destination).getValue())) {
+            packageExecutor = newExecutor(packageParallelism, "package");
+        }
+        packagePermits = new Semaphore(packageParallelism);
+        pipelineThreads = newThreadFactory("pipeline");
+
+        if (context.getProperty(ckan_client_service).isSet()) {
+            ckan_api_handler = context.getProperty(ckan_client_service).asControllerService(CKANClientService.class).getHandler();
+            ownsHandler = false;
+        } else {
+            String url = context.getProperty(CKAN_url).getValue();
+            final String apiKey = context.getProperty(api_key).getValue();
+
+            ConnectionPoolSettings poolSettings = new ConnectionPoolSettings(
+                    context.getProperty(max_total_connections).asInteger(),
+                    context.getProperty(max_connections_per_route).asInteger(),
+                    context.getProperty(connection_timeout).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                    context.getProperty(socket_timeout).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+
+            //The handler, and its connection pool, is kept while the processor is running
+            ckan_api_handler = new CKAN_API_Handler(url, apiKey, poolSettings);
+            ownsHandler = true;
+        }
+
+        //A streamed copy downloads and uploads at the same time, the other modes make one call at a time.
+        //Every download and upload goes to the CKAN host, so the copies share the connections of a single route
+        final ConnectionPoolSettings pool = ckan_api_handler.getConnectionPoolSettings();
+        final int poolSize = Math.min(pool.getMaxTotalConnections(), pool.getMaxConnectionsPerRoute());
+        connectionsPerCopy = Math.min(COPY_STREAMING.getValue().equals(copyMode) ? 2 : 1, poolSize);
+        connectionPermits = new Semaphore(poolSize);
+    }
+
+    /**
+     * Create the executor of the given role: a pool of platform threads, or a new virtual thread for each task.
+     * Virtual threads are not pooled, the tasks running at the same time are bounded by permits taken before submitting them
+     * @param threads Number of platform threads of the pool
+     */
+    private ExecutorService newExecutor(int threads, String role) {
+        if (virtualThreads) {
+            return VirtualThreads.newThreadPerTaskExecutor(getThreadNamePrefix(role));
+        }
+        return Executors.newFixedThreadPool(threads, newThreadFactory(role));
+    }
+
+    private ThreadFactory newThreadFactory(String role) {
+        final String namePrefix = getThreadNamePrefix(role);
+        if (virtualThreads) {
+            return VirtualThreads.newFactory(namePrefix);
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private String getThreadNamePrefix(String role) {
+        return "CKAN_Package_Backup-" + getIdentifier() + "-" + role + "-";
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (copyExecutor != null) {
+            copyExecutor.shutdownNow();
+            copyExecutor = null;
+        }
+        if (packageExecutor != null) {
+            packageExecutor.shutdownNow();
+            packageExecutor = null;
+        }
+        if (ckan_api_handler != null && ownsHandler) {
+            ckan_api_handler.close();
+        }
+        ckan_api_handler = null;
+        tempFileStore = null;
+    }
+
+    /**
+     * Create the temporary store of the processor, in its own subdirectory of the configured one
+     */
+    private TempFileStore createTempFileStore(final ProcessContext context) throws IOException {
+        String baseDirectory = context.getProperty(temp_directory).isSet()
+                ? context.getProperty(temp_directory).getValue()
+                : System.getProperty("java.io.tmpdir");
+        File directory = new File(baseDirectory, getIdentifier());
+        long maxSize = context.getProperty(temp_max_size).asDataSize(DataUnit.B).longValue();
+        getLogger().info("Using {} as temporary directory, up to {} bytes", new Object[]{directory, maxSize});
+        return new TempFileStore(directory, maxSize);
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        String tagList = context.getProperty(tag_list).getValue();
+
+        if (catalogScope) {
+            backupCatalog(context, session, tagList);
+            return;
+        }
+
         FlowFile flowFile = session.get();
         if (flowFile == null) {
             return;
@@ -129,11 +593,6 @@ public class CKAN_Package_Backup extends AbstractProcessor {
         //Get the package name to be backed up from the properties
         String packageName = context.getProperty(package_name).getValue();
 
-        String url = context.getProperty(CKAN_url).getValue();
-        final String apiKey = context.getProperty(api_key).getValue();
-
-        String tagList = context.getProperty(tag_list).getValue();
-
         /* *****************
          * Main logic of the CKAN package backup:
          *  - Look in CKAN for a package with the same name as the file
@@ -144,7 +603,6 @@ public class CKAN_Package_Backup extends AbstractProcessor {
          *      - Output flowfile via success so the next processor can update CKAN (do this here?)
          ******************** */
 
-        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey);
         try{
             getLogger().info("Getting the information of package with name: {}",new Object[]{packageName});
             Package_ dataset = ckan_api_handler.getPackageByName(packageName);
@@ -152,51 +610,33 @@ public class CKAN_Package_Backup extends AbstractProcessor {
             if(dataset!=null)
             {
                 //if found...
-                // get the resources linked to this dataset
-                List<Resource> resourceList = dataset.getResources();
-
-                //Format the date to something compatible with the CKAN name restrictions (alphanumeric or these symbols: -_ )
-                DateTimeFormatter formatter= DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
-                String timeStamp = LocalDateTime.now().format(formatter);
-
-                String datasetName = dataset.getName()+timeStamp;
-
-                getLogger().info("Creating the package: {}", new Object[]{datasetName});
-                //Create the new timestamped package
-                ckan_api_handler.createPackagePojoNoResources(dataset,datasetName,tagList);
-
-                //Check when the list of resources of the package is empty
-                if(resourceList.size()>0) {
-                    //For each resource, create a timestamped backup in the previous package
-                    for (Resource res : resourceList) {
-                        String fileExtension = res.getName().split("\\.")[1];
-                        String fileName = res.getName().split("\\.")[0];
-
-                        String resourceFileName = fileName+timeStamp+"."+fileExtension;
-
-                        getLogger().info("Uploading to dataset: {} the resource: {}",new Object[]{datasetName,resourceFileName});
-                        ckan_api_handler.uploadFilePojo(res, datasetName, resourceFileName);
+                PackageBackup backup = prepareBackup(getBackupState(context), dataset);
+                if (!backup.unchanged) {
+                    if (archiveDestination) {
+                        flowFile = writeArchive(session, flowFile, backup);
+                    } else {
+                        copyToPackage(backup, tagList);
                     }
                 }
-                //Transfer the input file through success relationship
-                session.transfer(flowFile, REL_BACKUP_CREATED);
-                ckan_api_handler.close();
+                Map<String, String> stateUpdates = new HashMap<>();
+                Set<String> stateRemovals = new HashSet<>();
+                recordBackup(backup, stateUpdates, stateRemovals);
+                updateState(context, stateUpdates, stateRemovals);
+                transferBackup(session, flowFile, backup);
             }else
             {
                 //if not found
                 session.transfer(flowFile, REL_NO_PACKAGE);
-                ckan_api_handler.close();
             }
-            session.commit();
             getLogger().info("Processor finished completely");
         }catch(IOException ioe) {
             getLogger().log(LogLevel.ERROR, "Error while using the CKAN API");
             getLogger().error(ioe.toString());
             session.transfer(session.penalize(flowFile), REL_FAILURE);
-        }catch(ArrayIndexOutOfBoundsException oob)
+        }catch(InterruptedException ie)
         {
-            getLogger().log(LogLevel.ERROR, "Error while splitting the resource filename, it contains no '.'");
-            getLogger().error(oob.toString());
+            Thread.currentThread().interrupt();
+            getLogger().error("Interrupted while waiting for the resources to be copied");
             session.transfer(session.penalize(flowFile), REL_FAILURE);
         }catch(Exception e)
         {
@@ -204,6 +644,460 @@ public class CKAN_Package_Backup extends AbstractProcessor {
             getLogger().error(e.toString());
             session.transfer(session.penalize(flowFile), REL_FAILURE);
         }
-        session.commit();
+    }
+
+    /**
+     * Back up every package of the CKAN instance, but the backups, a page of packages at a time. A new flowfile is output for each package.
+     * The pages follow the key of the last package backed up, which is recorded in the state, with the incremental state of the
+     * packages of the page, as soon as their copies are over. Only then are the flowfiles output and the session committed,
+     * so a stopped or failed run is resumed from the next package by the next run, and a rollback does not make the copies again
+     */
+    private void backupCatalog(final ProcessContext context, final ProcessSession session, final String tagList) {
+        if (!catalogLock.tryLock()) {
+            context.yield();
+            return;
+        }
+        try {
+            if (context.hasIncomingConnection()) {
+                //Each flowfile received starts, or resumes, a backup of the catalog
+                FlowFile trigger = session.get();
+                if (trigger == null) {
+                    return;
+                }
+                session.remove(trigger);
+            }
+            backupCatalogPages(context, session, tagList);
+        } finally {
+            catalogLock.unlock();
+        }
+    }
+
+    private void backupCatalogPages(final ProcessContext context, final ProcessSession session, final String tagList) {
+        final int pageSize = context.getProperty(catalog_page_size).asInteger();
+        try {
+            String cursor = context.getStateManager().getState(Scope.CLUSTER).get(STATE_CATALOG_CURSOR);
+            if (cursor != null) {
+                getLogger().info("Resuming the backup of the catalog after package {}", new Object[]{cursor});
+            }
+
+            int found;
+            do {
+                //Only the packages of the current page are held in memory
+                final List<PackageBackup> page = new ArrayList<>();
+                final Map<String, String> state = getBackupState(context);
+                found = ckan_api_handler.searchPackagesAfter(cursor, pageSize, BACKUP_TAG, dataset -> page.add(prepareBackup(state, dataset)));
+                getLogger().info("Backing up {} packages of the catalog after package {}", new Object[]{found, cursor});
+
+                //The copies to CKAN need no session, so several packages are copied at a time
+                Map<PackageBackup, Future<?>> copies = new HashMap<>();
+                if (!archiveDestination) {
+                    for (final PackageBackup backup : page) {
+                        if (!backup.unchanged) {
+                            packagePermits.acquire();
+                            copies.put(backup, packageExecutor.submit(() -> {
+                                try {
+                                    copyToPackage(backup, tagList);
+                                    return null;
+                                } finally {
+                                    packagePermits.release();
+                                }
+                            }));
+                        }
+                    }
+                }
+
+                List<FlowFile> flowFiles = new ArrayList<>();
+                Map<String, String> stateUpdates = new HashMap<>();
+                Set<String> stateRemovals = new HashSet<>();
+                for (PackageBackup backup : page) {
+                    FlowFile flowFile = session.create();
+                    try {
+                        if (copies.containsKey(backup)) {
+                            copies.get(backup).get();
+                        } else if (archiveDestination && !backup.unchanged) {
+                            flowFile = writeArchive(session, flowFile, backup);
+                        }
+                    } catch (ExecutionException | ProcessException e) {
+                        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                        getLogger().error("Error while backing up the package {}: {}", new Object[]{backup.packageName, cause.toString()});
+                        backup.failedResources = backup.changedResources;
+                    }
+                    flowFiles.add(session.putAttribute(flowFile, "ckan.backup.source.package", backup.packageName));
+                    recordBackup(backup, stateUpdates, stateRemovals);
+                }
+
+                //The packages of the page are backed up, the next run starts after them whatever happens to the session
+                if (!page.isEmpty()) {
+                    cursor = page.get(page.size() - 1).pageKey;
+                }
+                stateRemovals.add(LEGACY_STATE_CATALOG_START);
+                if (found < pageSize) {
+                    stateRemovals.add(STATE_CATALOG_CURSOR);
+                } else {
+                    stateUpdates.put(STATE_CATALOG_CURSOR, cursor);
+                }
+                updateState(context, stateUpdates, stateRemovals);
+
+                for (int i = 0; i < page.size(); i++) {
+                    transferBackup(session, flowFiles.get(i), page.get(i));
+                }
+                session.commit();
+            } while (found == pageSize && isScheduled());
+        } catch (IOException ioe) {
+            getLogger().error("Error while backing up the catalog, it will be resumed after the last package recorded: {}", new Object[]{ioe.toString()});
+            session.rollback();
+            context.yield();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            getLogger().error("Interrupted while waiting for the packages to be copied");
+            session.rollback();
+        }
+    }
+
+    /**
+     * Apply changes to the state of the processor, concurrent tasks may be changing it too
+     * @param updates Entries to set
+     * @param removals Keys of the entries to remove
+     */
+    private void updateState(final ProcessContext context, Map<String, String> updates, Set<String> removals) throws IOException {
+        if (updates.isEmpty() && removals.isEmpty()) {
+            return;
+        }
+        final StateManager stateManager = context.getStateManager();
+        synchronized (stateLock) {
+            Map<String, String> state = new HashMap<>(stateManager.getState(Scope.CLUSTER).toMap());
+            state.keySet().removeAll(removals);
+            state.putAll(updates);
+            stateManager.setState(state, Scope.CLUSTER);
+        }
+    }
+
+    /**
+     * @return The state of the last backups of the packages, only read in incremental mode
+     */
+    private Map<String, String> getBackupState(final ProcessContext context) throws IOException {
+        return incremental ? context.getStateManager().getState(Scope.CLUSTER).toMap() : Collections.emptyMap();
+    }
+
+    /**
+     * Decide what has to be copied to back up a package, every resource or, in incremental mode, only the ones
+     * modified since the last backup
+     * @param state State of the last backups, read once for every package of a page
+     */
+    private PackageBackup prepareBackup(final Map<String, String> state, Package_ dataset) {
+        PackageBackup backup = new PackageBackup(dataset);
+        if (incremental) {
+            String packageState = state.get(backup.packageId);
+            int separator = packageState == null ? -1 : packageState.indexOf(STATE_SEPARATOR);
+            if (backup.metadataModified != null && separator > 0 && backup.metadataModified.equals(packageState.substring(0, separator))) {
+                getLogger().info("Package {} not modified since its last backup, skipping it", new Object[]{backup.packageName});
+                backup.unchanged = true;
+                backup.changedResources = Collections.emptyList();
+                return backup;
+            }
+            Set<String> copied = separator < 0 ? Collections.emptySet()
+                    : new HashSet<>(Arrays.asList(packageState.substring(separator + 1).split(",")));
+            backup.changedResources = new ArrayList<>();
+            for (Resource res : backup.resources) {
+                if (!copied.contains(getFingerprintDigest(res))) {
+                    backup.changedResources.add(res);
+                }
+            }
+        }
+        return backup;
+    }
+
+    /**
+     * Record the result of the backup in the attributes of the flowfile, and transfer it
+     */
+    private void transferBackup(final ProcessSession session, FlowFile flowFile, PackageBackup backup) {
+        if (backup.unchanged) {
+            flowFile = session.putAttribute(flowFile, "ckan.backup.unchanged", "true");
+            session.transfer(flowFile, REL_BACKUP_CREATED);
+            return;
+        }
+        final List<Resource> failedResources = backup.failedResources;
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("ckan.backup.package", backup.backupName);
+        attributes.put("ckan.backup.resources.total", String.valueOf(backup.resources.size()));
+        attributes.put("ckan.backup.resources.copied", String.valueOf(backup.changedResources.size() - failedResources.size()));
+        attributes.put("ckan.backup.resources.failed", String.valueOf(failedResources.size()));
+        if (incremental) {
+            attributes.put("ckan.backup.resources.unchanged", String.valueOf(backup.resources.size() - backup.changedResources.size()));
+        }
+        if (!failedResources.isEmpty()) {
+            List<String> failedNames = new ArrayList<>();
+            for (Resource res : failedResources) {
+                failedNames.add(res.getName());
+            }
+            attributes.put("ckan.backup.resources.failed.names", String.join(",", failedNames));
+        }
+        if (archiveDestination) {
+            attributes.put(CoreAttributes.FILENAME.key(), backup.backupName + ".zip");
+            attributes.put(CoreAttributes.MIME_TYPE.key(), "application/zip");
+        }
+        flowFile = session.putAllAttributes(flowFile, attributes);
+
+        if (failedResources.isEmpty()) {
+            //Transfer the input file through success relationship
+            session.transfer(flowFile, REL_BACKUP_CREATED);
+        } else {
+            getLogger().error("{} of {} resources could not be copied to {}", new Object[]{failedResources.size(), backup.changedResources.size(), backup.backupName});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        }
+    }
+
+    /**
+     * Create the timestamped package in CKAN and copy the resources to it, several at a time.
+     * The resources that could not be copied are set as failed resources of the backup
+     */
+    private void copyToPackage(final PackageBackup backup, String tagList) throws IOException, InterruptedException {
+        final String datasetName = createBackupPackage(backup, tagList);
+
+        final List<Resource> resources = backup.changedResources;
+        if (COPY_PIPELINE.getValue().equals(copyMode)) {
+            //The stages of the pipeline overlap the downloads and the uploads of the resources, one resource at a time in each stage
+            ResourceCopyPipeline pipeline = new ResourceCopyPipeline(ckan_api_handler, tempFileStore, pipelineQueueSize, pipelinePrefetchSize,
+                    pipelineChecksum, pipelineThreads, getLogger());
+            backup.failedResources = pipeline.copy(resources, datasetName, backup.timeStamp);
+            return;
+        }
+
+        //For each resource, create a timestamped backup in the previous package, copying several at a time.
+        //The threads are shared with the other packages, the permits keep this one within its share and all of them within the connection pool
+        final Semaphore permits = new Semaphore(resourceCopyParallelism);
+        final Semaphore connections = connectionPermits;
+        final int connectionsTaken = connectionsPerCopy;
+        List<Future<Boolean>> copies = new ArrayList<>();
+        for (final Resource res : resources) {
+            permits.acquire();
+            try {
+                connections.acquire(connectionsTaken);
+            } catch (InterruptedException ie) {
+                permits.release();
+                throw ie;
+            }
+            copies.add(copyExecutor.submit(() -> {
+                try {
+                    return copyResource(res, datasetName, backup.timeStamp);
+                } finally {
+                    connections.release(connectionsTaken);
+                    permits.release();
+                }
+            }));
+        }
+
+        //Wait for all the copies and collect the resources that failed
+        List<Resource> failedResources = new ArrayList<>();
+        for (int i = 0; i < copies.size(); i++) {
+            Resource res = resources.get(i);
+            try {
+                if (!copies.get(i).get()) {
+                    failedResources.add(res);
+                }
+            } catch (ExecutionException ee) {
+                getLogger().error("Error while copying the resource {}: {}", new Object[]{res.getName(), ee.getCause().toString()});
+                failedResources.add(res);
+            }
+        }
+        backup.failedResources = failedResources;
+    }
+
+    /**
+     * Create the new timestamped package. The backups of the same package started in the same second get the name with a
+     * suffix, _2, _3..., each backup gets its own package
+     * @return The name of the package created, set as the name of the backup
+     * @throws IOException If CKAN did not create the package
+     */
+    private String createBackupPackage(final PackageBackup backup, String tagList) throws IOException {
+        String datasetName = backup.backupName;
+        for (int copy = 2; ; copy++) {
+            //The names taken by the other tasks are skipped, the ones taken by other nodes are found taken by CKAN
+            if (backupNames.add(datasetName)) {
+                getLogger().info("Creating the package: {}", new Object[]{datasetName});
+                if (ckan_api_handler.createPackagePojoNoResources(backup.dataset, datasetName, getBackupTags(tagList))) {
+                    backup.backupName = datasetName;
+                    return datasetName;
+                }
+                if (!ckan_api_handler.packageExists(datasetName)) {
+                    throw new IOException("CKAN did not create the backup package " + datasetName);
+                }
+            }
+            if (copy > MAX_BACKUP_NAME_SUFFIX) {
+                throw new IOException("Every name of the backup package " + backup.backupName + " is in use");
+            }
+            datasetName = backup.backupName + "_" + copy;
+        }
+    }
+
+    /**
+     * Replace the content of the flowfile with a ZIP archive of the package: its metadata in package.json and
+     * the file of each resource under resources/. Each resource is written to the archive while it is downloaded.
+     * The resources that could not be downloaded are left out of the archive and set as failed resources of the backup
+     */
+    private FlowFile writeArchive(final ProcessSession session, FlowFile flowFile, final PackageBackup backup) {
+        getLogger().info("Writing the package {} to the archive: {}", new Object[]{backup.packageName, backup.backupName + ".zip"});
+        final String packageJson = ckan_api_handler.packageToJson(backup.dataset);
+        final List<Resource> failedResources = new ArrayList<>();
+        flowFile = session.write(flowFile, out -> {
+            final ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out));
+            zip.putNextEntry(new ZipEntry("package.json"));
+            zip.write(packageJson.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            final Set<String> entryNames = new HashSet<>();
+            for (final Resource res : backup.changedResources) {
+                //Names are not unique in a package, the id is added to repeated ones
+                String entryName = "resources/" + (res.getName() != null ? res.getName() : res.getId());
+                if (!entryNames.add(entryName)) {
+                    entryName = "resources/" + res.getId() + "_" + res.getName();
+                    entryNames.add(entryName);
+                }
+                final String name = entryName;
+                boolean downloaded = ckan_api_handler.downloadFilePojo(res, in -> {
+                    zip.putNextEntry(new ZipEntry(name));
+                    StreamUtils.copy(in, zip);
+                    zip.closeEntry();
+                });
+                if (!downloaded) {
+                    failedResources.add(res);
+                }
+            }
+            //Completes the archive, the stream of the session is closed by the session
+            zip.finish();
+            zip.flush();
+        });
+        backup.failedResources = failedResources;
+        return flowFile;
+    }
+
+    /**
+     * Digest of the fingerprint (last modified, hash, size and url) of the content of a resource and of its id, stored in the state
+     * to detect its changes. It is cut to keep the state of a catalog small, a collision only makes a changed resource look unchanged
+     */
+    private static String getFingerprintDigest(Resource res) {
+        return getDigest(res.getId() + "|" + res.getLastModified() + "|" + res.getHash() + "|" + res.getSize() + "|" + res.getUrl());
+    }
+
+    /**
+     * Short digest of a value kept in the state, 72 bits of its SHA-256 in base64
+     */
+    static String getDigest(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, FINGERPRINT_DIGEST_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add to the changes of the state the resources of a package copied in an incremental backup, as a single entry with the
+     * metadata_modified of the package, only when the backup was complete, and the digests of the fingerprints of its resources,
+     * so the state grows with the catalog by a few bytes per resource. The resources that failed are left out, so they are
+     * copied again by the next backup, and the resources no longer in the package are forgotten
+     */
+    private void recordBackup(PackageBackup backup, Map<String, String> updates, Set<String> removals) {
+        if (!incremental || backup.unchanged) {
+            return;
+        }
+        Set<Resource> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        failed.addAll(backup.failedResources);
+        StringBuilder packageState = new StringBuilder(failed.isEmpty() && backup.metadataModified != null ? backup.metadataModified : "")
+                .append(STATE_SEPARATOR);
+        String separator = "";
+        for (Resource res : backup.resources) {
+            if (!failed.contains(res)) {
+                packageState.append(separator).append(getFingerprintDigest(res));
+                separator = ",";
+            }
+        }
+        updates.put(backup.packageId, packageState.toString());
+        removals.add(backup.packageId + LEGACY_STATE_METADATA_MODIFIED);
+        for (Resource res : backup.resources) {
+            removals.add(backup.packageId + "." + res.getId());
+        }
+    }
+
+    /**
+     * Backup of a package: what it had when it was read and what has been copied
+     */
+    private static final class PackageBackup {
+        private final Package_ dataset;
+        private final String packageName;
+        //Kept before the dataset is reused to create the backup package
+        private final String packageId;
+        private final String metadataModified;
+        //Position of the package in the pages of the catalog
+        private final String pageKey;
+        private final List<Resource> resources;
+        private final String timeStamp;
+        //Set to the name of the package created, the name of the backup with a suffix if it was taken
+        private volatile String backupName;
+        private List<Resource> changedResources;
+        private volatile List<Resource> failedResources = Collections.emptyList();
+        private boolean unchanged;
+
+        private PackageBackup(Package_ dataset) {
+            this.dataset = dataset;
+            this.packageName = dataset.getName();
+            this.packageId = dataset.getId();
+            this.metadataModified = dataset.getMetadataModified();
+            this.pageKey = dataset.getMetadataCreated() != null ? CKAN_API_Handler.getPageKey(dataset) : null;
+            // get the resources linked to this dataset
+            this.resources = dataset.getResources() != null ? dataset.getResources() : Collections.<Resource>emptyList();
+            this.changedResources = resources;
+
+            //Format the date to something compatible with the CKAN name restrictions (alphanumeric or these symbols: -_ )
+            DateTimeFormatter formatter= DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+            this.timeStamp = LocalDateTime.now().format(formatter);
+            this.backupName = packageName + timeStamp;
+        }
+    }
+
+    /**
+     * Copy a resource to the backup package, adding the timestamp to its name
+     * @return true if CKAN accepted the new resource
+     */
+    private boolean copyResource(Resource res, String datasetName, String timeStamp) throws IOException {
+        String resourceFileName = getBackupResourceName(res.getName(), timeStamp);
+        if (resourceFileName == null) {
+            getLogger().error("Error while splitting the resource filename {}, it contains no '.'", new Object[]{res.getName()});
+            return false;
+        }
+
+        getLogger().info("Uploading to dataset: {} the resource: {}",new Object[]{datasetName,resourceFileName});
+        if (COPY_LINK.getValue().equals(copyMode)) {
+            return ckan_api_handler.linkFilePojo(res, datasetName, resourceFileName);
+        }
+        if (COPY_STREAMING.getValue().equals(copyMode)) {
+            return ckan_api_handler.copyFilePojoStreaming(res, datasetName, resourceFileName, streamingBufferSize);
+        }
+        return ckan_api_handler.uploadFilePojo(res, datasetName, resourceFileName, tempFileStore);
+    }
+
+    /**
+     * @param tagList Comma-separated tags set for the backups, null or empty for none
+     * @return The tags of a backup package, with the tag that keeps it out of the backups of the catalog
+     */
+    static String getBackupTags(String tagList) {
+        return tagList == null || tagList.trim().isEmpty() ? BACKUP_TAG : tagList + "," + BACKUP_TAG;
+    }
+
+    /**
+     * Name of the copy of a resource in a backup, the timestamp of the backup is added before the extension
+     * @return The name of the copy, null if the name of the resource has no extension
+     */
+    static String getBackupResourceName(String name, String timeStamp) {
+        String[] nameParts = name.split("\\.");
+        if (nameParts.length < 2) {
+            return null;
+        }
+        String fileExtension = nameParts[1];
+        String fileName = nameParts[0];
+
+        return fileName+timeStamp+"."+fileExtension;
     }
 }
@@ -0,0 +1,322 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.CKAN_Async_API_Handler;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.services.CKANClientService;
+import org.apache.nifi.annotation.behavior.EventDriven;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+@EventDriven
+@SupportsBatching
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"ckan","backup","fetch","web service","request"})
+@CapabilityDescription("Copies a resource listed by ListCKANPackages to the backup package named in the flowfile, creating that package " +
+        "from the metadata of the original one if it does not exist yet. The flowfiles of a package can be processed by different nodes of the cluster.")
+@SeeAlso({ListCKANPackages.class})
+@ReadsAttributes({
+        @ReadsAttribute(attribute = "ckan.package.name", description = "Name of the package backed up"),
+        @ReadsAttribute(attribute = "ckan.backup.package", description = "Name of the backup package"),
+        @ReadsAttribute(attribute = "ckan.backup.id", description = "Id of the backup, a backup package with the same name is only used if it was created with this id"),
+        @ReadsAttribute(attribute = "ckan.backup.timestamp", description = "Timestamp added to the name of the copy of the resource"),
+        @ReadsAttribute(attribute = "ckan.resource.name", description = "Name of the resource to copy, when there is no resource only the backup package is created"),
+        @ReadsAttribute(attribute = "ckan.resource.url", description = "Url of the file of the resource"),
+        @ReadsAttribute(attribute = "ckan.resource.format", description = "Format of the resource"),
+        @ReadsAttribute(attribute = "ckan.resource.description", description = "Description of the resource"),
+        @ReadsAttribute(attribute = "ckan.resource.mimetype", description = "Mimetype of the resource"),
+        @ReadsAttribute(attribute = "ckan.resource.hash", description = "Hash of the resource, linked by the Link copy mode")
+})
+public class FetchCKANResource extends AbstractProcessor {
+
+    private static final PropertyDescriptor ckan_client_service = new PropertyDescriptor
+            .Builder().name("ckan_client_service")
+            .displayName("CKAN Client Service")
+            .description("Controller Service providing the CKAN client used to copy the resources")
+            .identifiesControllerService(CKANClientService.class)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor tag_list = new PropertyDescriptor
+            .Builder().name("tag_list")
+            .displayName("Comma-separated Tag List")
+            .description("Comma-separated tag list to be set for the backup packages created. Only alphanumeric characters and '_' accepted")
+            .addValidator(Validator.VALID)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor resource_copy_mode = new PropertyDescriptor
+            .Builder().name("resource_copy_mode")
+            .displayName("Resource Copy Mode")
+            .description("How the resource is copied to the backup package. Link only copies the metadata of the resource")
+            .allowableValues(CKAN_Package_Backup.COPY_STREAMING, CKAN_Package_Backup.COPY_LINK)
+            .defaultValue(CKAN_Package_Backup.COPY_STREAMING.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor batch_size = new PropertyDescriptor
+            .Builder().name("batch_size")
+            .displayName("Batch Size")
+            .description("Maximum number of flowfiles processed in a single execution. In Link mode their resources are linked at the same time, " +
+                    "on the non-blocking client of the CKAN Client Service, up to the size of its connection pool, without a thread each")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor streaming_buffer_size = new PropertyDescriptor
+            .Builder().name("streaming_buffer_size")
+            .displayName("Streaming Buffer Size")
+            .description("Size of the buffer between the download and the upload of each resource copied in Streaming mode")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("64 KB")
+            .required(true)
+            .build();
+
+    //Backup packages remembered as created
+    private static final int MAX_CREATED_PACKAGES = 1000;
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("The resource was copied to the backup package")
+            .build();
+    private static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("The resource, or the backup package, could not be created in CKAN")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile CKAN_API_Handler ckan_api_handler;
+    //Only in Link mode
+    private volatile CKAN_Async_API_Handler asyncHandler;
+    private volatile int streamingBufferSize;
+    //Concurrent tasks receiving resources of the same package create its backup package only once, by name of the backup package
+    private final ConcurrentMap<String, Object> createLocks = new ConcurrentHashMap<>();
+    //Ids of the backups of the backup packages created, or found created by another node, recently, by name of the package.
+    //ListCKANPackages outputs the flowfiles of a package together
+    private final Map<String, String> createdPackages = Collections.synchronizedMap(new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CREATED_PACKAGES;
+        }
+    });
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(ckan_client_service);
+        descriptors.add(tag_list);
+        descriptors.add(resource_copy_mode);
+        descriptors.add(batch_size);
+        descriptors.add(streaming_buffer_size);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        String copyMode = context.getProperty(resource_copy_mode).getValue();
+        streamingBufferSize = context.getProperty(streaming_buffer_size).asDataSize(DataUnit.B).intValue();
+        //The clients belong to the service, they are not closed by this processor
+        CKANClientService service = context.getProperty(ckan_client_service).asControllerService(CKANClientService.class);
+        ckan_api_handler = service.getHandler();
+        asyncHandler = CKAN_Package_Backup.COPY_LINK.getValue().equals(copyMode) ? service.getAsyncHandler() : null;
+    }
+
+    @OnStopped
+    public void onStopped() {
+        ckan_api_handler = null;
+        asyncHandler = null;
+        createdPackages.clear();
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        List<FlowFile> flowFiles = session.get(context.getProperty(batch_size).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+        final String tagList = context.getProperty(tag_list).getValue();
+
+        //In Link mode the resources of the batch are linked at the same time, on the non-blocking client
+        Map<FlowFile, CompletableFuture<Boolean>> links = new LinkedHashMap<>();
+        for (FlowFile flowFile : flowFiles) {
+            String packageName = flowFile.getAttribute("ckan.package.name");
+            String backupName = flowFile.getAttribute("ckan.backup.package");
+            String backupId = flowFile.getAttribute("ckan.backup.id");
+            String timeStamp = flowFile.getAttribute("ckan.backup.timestamp");
+            if (packageName == null || backupName == null || backupId == null || timeStamp == null) {
+                getLogger().error("{} has no ckan.package.name, ckan.backup.package, ckan.backup.id or ckan.backup.timestamp attribute, it was not listed by ListCKANPackages", new Object[]{flowFile});
+                session.transfer(flowFile, REL_FAILURE);
+                continue;
+            }
+
+            try {
+                if (!createBackupPackage(packageName, backupName, backupId, tagList)) {
+                    session.transfer(session.penalize(flowFile), REL_FAILURE);
+                    continue;
+                }
+                if (flowFile.getAttribute("ckan.resource.name") == null) {
+                    //The package has no resources, the backup package was all there was to create
+                    session.transfer(flowFile, REL_SUCCESS);
+                    continue;
+                }
+                Resource res = getResource(flowFile);
+                String resourceFileName = getCopyName(res, timeStamp);
+                if (resourceFileName == null) {
+                    session.transfer(session.penalize(flowFile), REL_FAILURE);
+                } else if (asyncHandler != null) {
+                    getLogger().info("Linking to dataset: {} the resource: {}", new Object[]{backupName, resourceFileName});
+                    links.put(flowFile, asyncHandler.linkResourceAsync(res, backupName, resourceFileName));
+                } else {
+                    getLogger().info("Uploading to dataset: {} the resource: {}", new Object[]{backupName, resourceFileName});
+                    transferCopy(session, flowFile, ckan_api_handler.copyFilePojoStreaming(res, backupName, resourceFileName, streamingBufferSize));
+                }
+            } catch (IOException ioe) {
+                getLogger().error("Error while copying the resource {} to {}: {}", new Object[]{flowFile.getAttribute("ckan.resource.name"), backupName, ioe.toString()});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+        }
+
+        //The links are bounded by the timeouts of the client, they are waited for even if the processor is stopped
+        for (Map.Entry<FlowFile, CompletableFuture<Boolean>> link : links.entrySet()) {
+            boolean linked;
+            try {
+                linked = link.getValue().join();
+            } catch (CompletionException | CancellationException e) {
+                getLogger().error("Error while linking the resource {}: {}", new Object[]{link.getKey().getAttribute("ckan.resource.name"),
+                        e.getCause() != null ? e.getCause().toString() : e.toString()});
+                linked = false;
+            }
+            transferCopy(session, link.getKey(), linked);
+        }
+    }
+
+    private void transferCopy(final ProcessSession session, FlowFile flowFile, boolean copied) {
+        if (copied) {
+            session.transfer(flowFile, REL_SUCCESS);
+        } else {
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        }
+    }
+
+    /**
+     * Create the backup package from the metadata of the original package, unless this processor already did.
+     * Only the tasks creating the same backup package wait for each other.
+     * Another node of the cluster may create it at the same time: CKAN rejects the second package with the same name,
+     * which counts as created when it has the same backup id, and the resource is then copied to the one created by the other node
+     * @return false if the original package no longer exists, CKAN did not create the backup package or another backup has its name
+     */
+    private boolean createBackupPackage(String packageName, String backupName, String backupId, String tagList) throws IOException {
+        if (backupId.equals(createdPackages.get(backupName))) {
+            return true;
+        }
+        final Object createLock = createLocks.computeIfAbsent(backupName, name -> new Object());
+        try {
+            synchronized (createLock) {
+                if (backupId.equals(createdPackages.get(backupName))) {
+                    return true;
+                }
+                Package_ dataset = ckan_api_handler.getPackageByName(packageName);
+                if (dataset == null) {
+                    getLogger().error("The package {} no longer exists, its backup {} cannot be created", new Object[]{packageName, backupName});
+                    return false;
+                }
+                getLogger().info("Creating the package: {}", new Object[]{backupName});
+                if (!ckan_api_handler.createPackagePojoNoResources(dataset, backupName, CKAN_Package_Backup.getBackupTags(tagList), backupId)) {
+                    getLogger().error("CKAN did not create the backup package {}", new Object[]{backupName});
+                    return false;
+                }
+                createdPackages.put(backupName, backupId);
+                return true;
+            }
+        } finally {
+            //The tasks already waiting for the lock find the package created, the next ones do not need the lock
+            createLocks.remove(backupName, createLock);
+        }
+    }
+
+    /**
+     * Rebuild the resource listed from the attributes of the flowfile
+     */
+    private static Resource getResource(FlowFile flowFile) {
+        Resource res = new Resource();
+        res.setId(flowFile.getAttribute("ckan.resource.id"));
+        res.setName(flowFile.getAttribute("ckan.resource.name"));
+        res.setUrl(flowFile.getAttribute("ckan.resource.url"));
+        res.setFormat(flowFile.getAttribute("ckan.resource.format"));
+        res.setDescription(flowFile.getAttribute("ckan.resource.description"));
+        res.setMimetype(flowFile.getAttribute("ckan.resource.mimetype"));
+        res.setHash(flowFile.getAttribute("ckan.resource.hash"));
+        return res;
+    }
+
+    /**
+     * Name of the copy of a resource in the backup package, with the timestamp of the backup
+     * @return null if the resource cannot be copied
+     */
+    private String getCopyName(Resource res, String timeStamp) {
+        String resourceFileName = CKAN_Package_Backup.getBackupResourceName(res.getName(), timeStamp);
+        if (resourceFileName == null) {
+            getLogger().error("Error while splitting the resource filename {}, it contains no '.'", new Object[]{res.getName()});
+            return null;
+        }
+        if (res.getUrl() == null) {
+            getLogger().error("The resource {} has no url", new Object[]{res.getName()});
+            return null;
+        }
+        return resourceFileName;
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.pojos.Resource;
+import net.atos.qrowd.services.CKANClientService;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+@TriggerSerially
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@Stateful(scopes = Scope.CLUSTER, description = "One entry per package of the catalog, by id, with a short digest of its metadata_modified " +
+        "when it was last listed, so only the packages modified since then are listed again")
+@Tags({"ckan","backup","list","web service","request"})
+@CapabilityDescription("Lists the packages of the CKAN instance modified since they were last listed, but the backups tagged " + CKAN_Package_Backup.BACKUP_TAG +
+        ", and outputs a flowfile, with no content, " +
+        "for each of their resources (or one for the package when it has no resources) to be backed up by FetchCKANResource. " +
+        "It should be run on the primary node only, the flowfiles can then be distributed to the nodes of the cluster.")
+@SeeAlso({FetchCKANResource.class})
+@WritesAttributes({
+        @WritesAttribute(attribute = "filename", description = "Name of the resource, or of the package when it has no resources"),
+        @WritesAttribute(attribute = "ckan.package.name", description = "Name of the package listed"),
+        @WritesAttribute(attribute = "ckan.package.id", description = "Id of the package listed"),
+        @WritesAttribute(attribute = "ckan.package.metadata_modified", description = "Last modification of the package listed"),
+        @WritesAttribute(attribute = "ckan.backup.package", description = "Name of the package to create as backup, the same for all the resources of the package"),
+        @WritesAttribute(attribute = "ckan.backup.id", description = "Unique id of the backup, the same for all the resources of the package, set in the backup package created"),
+        @WritesAttribute(attribute = "ckan.backup.timestamp", description = "Timestamp of the backup, added to the names of the package and of the resources"),
+        @WritesAttribute(attribute = "ckan.resource.count", description = "Number of resources of the package"),
+        @WritesAttribute(attribute = "ckan.resource.id", description = "Id of the resource, not set when the package has no resources"),
+        @WritesAttribute(attribute = "ckan.resource.name", description = "Name of the resource"),
+        @WritesAttribute(attribute = "ckan.resource.url", description = "Url of the file of the resource"),
+        @WritesAttribute(attribute = "ckan.resource.format", description = "Format of the resource, when known"),
+        @WritesAttribute(attribute = "ckan.resource.description", description = "Description of the resource, when set"),
+        @WritesAttribute(attribute = "ckan.resource.mimetype", description = "Mimetype of the resource, when known"),
+        @WritesAttribute(attribute = "ckan.resource.hash", description = "Hash of the resource, when known"),
+        @WritesAttribute(attribute = "ckan.resource.size", description = "Size of the resource, when known")
+})
+public class ListCKANPackages extends AbstractProcessor {
+
+    private static final PropertyDescriptor ckan_client_service = new PropertyDescriptor
+            .Builder().name("ckan_client_service")
+            .displayName("CKAN Client Service")
+            .description("Controller Service providing the CKAN client used to list the packages")
+            .identifiesControllerService(CKANClientService.class)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor page_size = new PropertyDescriptor
+            .Builder().name("page_size")
+            .displayName("Page Size")
+            .description("Number of packages read from CKAN at a time. The flowfiles of a page are output, and the packages recorded in the state, before reading the next one")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .required(true)
+            .build();
+
+    //Key of the state holding the metadata_modified of the package when it was last listed, after the id of the package,
+    //as kept by the previous versions of the processor. They are replaced as the packages are listed again
+    private static final String LEGACY_STATE_METADATA_MODIFIED = ".metadata_modified";
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("A flowfile for each resource of the packages listed")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile CKAN_API_Handler ckan_api_handler;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(ckan_client_service);
+        descriptors.add(page_size);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        //The client belongs to the service, it is not closed by this processor
+        ckan_api_handler = context.getProperty(ckan_client_service).asControllerService(CKANClientService.class).getHandler();
+    }
+
+    @OnStopped
+    public void onStopped() {
+        ckan_api_handler = null;
+    }
+
+    /**
+     * List the whole catalog, but the backups, a page of packages at a time. Each page follows the last package of the previous
+     * one in the order of creation, so the packages created or deleted while listing do not make it skip or repeat packages.
+     * The session is committed before the packages of a page are recorded in the state, so a failed run lists them again
+     * rather than losing them, and the state is only written for the pages with packages listed. Each package is recorded by
+     * its id with a digest of its metadata_modified, a collision only makes a modified package look unchanged.
+     * Packages no longer in the catalog are removed from the state once the whole catalog has been listed
+     */
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final int pageSize = context.getProperty(page_size).asInteger();
+        final StateManager stateManager = context.getStateManager();
+        try {
+            final Map<String, String> state = new HashMap<>(stateManager.getState(Scope.CLUSTER).toMap());
+            final Set<String> seenKeys = new HashSet<>();
+            final String[] cursor = new String[1];
+            final int[] listedCount = new int[1];
+            int read = 0;
+            int found;
+            do {
+                final Map<String, String> pageState = new HashMap<>();
+                found = ckan_api_handler.searchPackagesAfter(cursor[0], pageSize, CKAN_Package_Backup.BACKUP_TAG, dataset -> {
+                    cursor[0] = CKAN_API_Handler.getPageKey(dataset);
+                    String key = dataset.getId();
+                    seenKeys.add(key);
+                    String metadataModified = dataset.getMetadataModified();
+                    String digest = metadataModified != null ? CKAN_Package_Backup.getDigest(metadataModified) : null;
+                    if (digest != null && digest.equals(state.get(key))) {
+                        return;
+                    }
+                    if (metadataModified == null || !metadataModified.equals(state.get(key + LEGACY_STATE_METADATA_MODIFIED))) {
+                        listPackage(session, dataset);
+                        listedCount[0]++;
+                    }
+                    if (digest != null) {
+                        pageState.put(key, digest);
+                    }
+                });
+                read += found;
+
+                session.commit();
+                if (!pageState.isEmpty()) {
+                    for (String key : pageState.keySet()) {
+                        state.remove(key + LEGACY_STATE_METADATA_MODIFIED);
+                    }
+                    state.putAll(pageState);
+                    stateManager.setState(state, Scope.CLUSTER);
+                }
+            } while (found == pageSize && isScheduled());
+
+            if (found < pageSize) {
+                //The whole catalog was read, forget the packages deleted since the last listing
+                if (state.keySet().retainAll(seenKeys)) {
+                    stateManager.setState(state, Scope.CLUSTER);
+                }
+            }
+            getLogger().info("Listed {} modified packages out of {}", new Object[]{listedCount[0], read});
+            if (listedCount[0] == 0) {
+                context.yield();
+            }
+        } catch (IOException ioe) {
+            getLogger().error("Error while listing the packages of the catalog: {}", new Object[]{ioe.toString()});
+            session.rollback();
+            context.yield();
+        }
+    }
+
+    /**
+     * Output a flowfile for each resource of the package, or one for the package when it has no resources
+     */
+    private void listPackage(final ProcessSession session, Package_ dataset) {
+        //Format the date to something compatible with the CKAN name restrictions (alphanumeric or these symbols: -_ )
+        DateTimeFormatter formatter= DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+        String timeStamp = LocalDateTime.now().format(formatter);
+        List<Resource> resources = dataset.getResources() != null ? dataset.getResources() : Collections.<Resource>emptyList();
+
+        Map<String, String> packageAttributes = new HashMap<>();
+        packageAttributes.put("ckan.package.name", dataset.getName());
+        packageAttributes.put("ckan.package.id", dataset.getId());
+        putIfSet(packageAttributes, "ckan.package.metadata_modified", dataset.getMetadataModified());
+        packageAttributes.put("ckan.backup.package", dataset.getName() + timeStamp);
+        packageAttributes.put("ckan.backup.timestamp", timeStamp);
+        packageAttributes.put("ckan.backup.id", UUID.randomUUID().toString());
+        packageAttributes.put("ckan.resource.count", String.valueOf(resources.size()));
+
+        if (resources.isEmpty()) {
+            FlowFile flowFile = session.create();
+            packageAttributes.put(CoreAttributes.FILENAME.key(), dataset.getName());
+            session.transfer(session.putAllAttributes(flowFile, packageAttributes), REL_SUCCESS);
+            return;
+        }
+        for (Resource res : resources) {
+            Map<String, String> attributes = new HashMap<>(packageAttributes);
+            putIfSet(attributes, CoreAttributes.FILENAME.key(), res.getName());
+            putIfSet(attributes, "ckan.resource.id", res.getId());
+            putIfSet(attributes, "ckan.resource.name", res.getName());
+            putIfSet(attributes, "ckan.resource.url", res.getUrl());
+            putIfSet(attributes, "ckan.resource.format", res.getFormat());
+            putIfSet(attributes, "ckan.resource.description", res.getDescription());
+            putIfSet(attributes, "ckan.resource.mimetype", res.getMimetype());
+            putIfSet(attributes, "ckan.resource.hash", res.getHash());
+            if (res.getSize() instanceof Number) {
+                attributes.put("ckan.resource.size", String.valueOf(((Number) res.getSize()).longValue()));
+            }
+            FlowFile flowFile = session.create();
+            session.transfer(session.putAllAttributes(flowFile, attributes), REL_SUCCESS);
+        }
+    }
+
+    private static void putIfSet(Map<String, String> attributes, String name, Object value) {
+        if (value != null && !value.toString().isEmpty()) {
+            attributes.put(name, value.toString());
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.TempFileStore;
+import net.atos.qrowd.pojos.Resource;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.stream.io.StreamUtils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Copies the resources of a package through three stages, each running in its own thread: the download of the
+ * resources to temporary files, an optional checksum of the files, and their upload to the backup package.
+ * The download takes a slot before starting each resource, given back when the upload takes the resource: when the
+ * upload is slower than the download, the download waits, so no more than queueSize resources are downloaded ahead
+ * of the upload, whatever the number of resources. The files downloaded and not uploaded yet are also bounded in bytes:
+ * the download of the next resource waits until there is room for it, so a few big resources do not fill the disk
+ * even when the queue is short. The bytes beyond the size given by CKAN, or all of them when it gives none, wait for
+ * room as they are written, so a resource bigger than announced does not go over the bytes either.
+ */
+final class ResourceCopyPipeline {
+
+    //Marks the end of the resources in a queue
+    private static final Item END = new Item(null, null);
+
+    private final CKAN_API_Handler handler;
+    private final TempFileStore tempFileStore;
+    private final int queueSize;
+    private final long maxBufferedBytes;
+    private final boolean checksum;
+    private final ThreadFactory threads;
+    private final ComponentLog logger;
+    //Resources downloaded, or being downloaded, that the upload has not taken yet
+    private final Semaphore slots;
+    //Bytes of the files downloaded and not uploaded yet, guarded by this
+    private long bufferedBytes;
+    //Set once the copy returns, the stages still running must not leave files behind
+    private volatile boolean closed;
+
+    /**
+     * @param handler Handler downloading and uploading the resources
+     * @param tempFileStore Store of the files between the download and the upload
+     * @param queueSize Maximum number of resources downloaded ahead of the upload
+     * @param maxBufferedBytes Maximum number of bytes downloaded ahead of the upload. A single resource bigger than this
+     *                         is still copied, but only when no other resource is waiting
+     * @param checksum True to compute the SHA-256 of each file, stored as the hash of the copy
+     * @param threads Factory of the threads of the download and checksum stages
+     * @param logger Logger of the processor
+     */
+    ResourceCopyPipeline(CKAN_API_Handler handler, TempFileStore tempFileStore, int queueSize, long maxBufferedBytes, boolean checksum,
+                         ThreadFactory threads, ComponentLog logger) {
+        this.handler = handler;
+        this.tempFileStore = tempFileStore;
+        this.queueSize = queueSize;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.checksum = checksum;
+        this.threads = threads;
+        this.logger = logger;
+        this.slots = new Semaphore(queueSize);
+    }
+
+    /**
+     * Copy the resources to the backup package, adding the timestamp to their names.
+     * The upload stage runs in the calling thread, which returns once every resource has gone through the pipeline
+     * @return The resources that could not be copied
+     * @throws InterruptedException If the calling thread is interrupted, the other stages are stopped before returning
+     */
+    List<Resource> copy(final List<Resource> resources, final String datasetName, final String timeStamp) throws InterruptedException {
+        final List<Resource> failed = Collections.synchronizedList(new ArrayList<Resource>());
+        final BlockingQueue<Item> downloaded = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Item> toUpload = checksum ? new ArrayBlockingQueue<Item>(queueSize) : downloaded;
+
+        List<Thread> stages = new ArrayList<>();
+        stages.add(threads.newThread(() -> download(resources, timeStamp, downloaded, failed)));
+        if (checksum) {
+            stages.add(threads.newThread(() -> checksum(downloaded, toUpload, failed)));
+        }
+        for (Thread stage : stages) {
+            stage.start();
+        }
+
+        try {
+            upload(datasetName, toUpload, failed);
+            for (Thread stage : stages) {
+                stage.join();
+            }
+        } finally {
+            closed = true;
+            for (Thread stage : stages) {
+                stage.interrupt();
+            }
+            //Files left in the queues when the copy was interrupted
+            discard(downloaded);
+            discard(toUpload);
+        }
+        return new ArrayList<>(failed);
+    }
+
+    /**
+     * First stage: download each resource to a file of the store
+     */
+    private void download(List<Resource> resources, String timeStamp, BlockingQueue<Item> out, List<Resource> failed) {
+        try {
+            for (Resource res : resources) {
+                if (closed) {
+                    break;
+                }
+                String resourceFileName = CKAN_Package_Backup.getBackupResourceName(res.getName(), timeStamp);
+                if (resourceFileName == null) {
+                    logger.error("Error while splitting the resource filename {}, it contains no '.'", new Object[]{res.getName()});
+                    failed.add(res);
+                    continue;
+                }
+                Item item = new Item(res, resourceFileName);
+                long expectedSize = res.getSize() instanceof Number ? ((Number) res.getSize()).longValue() : -1;
+                //Wait for the upload to catch up before downloading more
+                slots.acquire();
+                item.holdsSlot = true;
+                try {
+                    reserve(item, expectedSize);
+                } catch (InterruptedException e) {
+                    close(item);
+                    throw e;
+                }
+                try {
+                    item.file = tempFileStore.create(resourceFileName, expectedSize);
+                    //The file can only take the room left in the store and in the pipeline, whatever the size given by CKAN
+                    boolean downloaded = handler.downloadFilePojo(res, in -> {
+                        try (OutputStream file = new BufferingOutputStream(item, item.file.openOutputStream())) {
+                            StreamUtils.copy(in, file);
+                        }
+                    });
+                    if (!downloaded) {
+                        close(item);
+                        failed.add(res);
+                        continue;
+                    }
+                    resize(item, item.file.getFile().length());
+                } catch (IOException e) {
+                    logger.error("Error while downloading the resource {}: {}", new Object[]{res.getName(), e.toString()});
+                    close(item);
+                    failed.add(res);
+                    continue;
+                }
+                putOrDiscard(out, item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            end(out);
+        }
+    }
+
+    /**
+     * Optional stage: compute the SHA-256 of each file, the hash is stored in the copy of the resource
+     */
+    private void checksum(BlockingQueue<Item> in, BlockingQueue<Item> out, List<Resource> failed) {
+        try {
+            Item item;
+            while ((item = in.take()) != END) {
+                try {
+                    item.hash = sha256(item);
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    logger.error("Error while computing the checksum of the resource {}: {}", new Object[]{item.resource.getName(), e.toString()});
+                    close(item);
+                    failed.add(item.resource);
+                    continue;
+                }
+                putOrDiscard(out, item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            end(out);
+        }
+    }
+
+    /**
+     * Last stage: upload each file to the backup package and delete it
+     */
+    private void upload(String datasetName, BlockingQueue<Item> in, List<Resource> failed) throws InterruptedException {
+        Item item;
+        while ((item = in.take()) != END) {
+            //The download may go on with the next resource while this one is uploaded
+            releaseSlot(item);
+            try {
+                logger.info("Uploading to dataset: {} the resource: {}", new Object[]{datasetName, item.resourceFileName});
+                if (!handler.uploadFilePojo(item.resource, datasetName, item.resourceFileName, item.file.getFile(), item.hash)) {
+                    failed.add(item.resource);
+                }
+            } catch (IOException e) {
+                logger.error("Error while uploading the resource {}: {}", new Object[]{item.resource.getName(), e.toString()});
+                failed.add(item.resource);
+            } finally {
+                close(item);
+            }
+        }
+    }
+
+    private static String sha256(Item item) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(item.file.getFile().toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sha256.update(buffer, 0, read);
+            }
+        }
+        return String.format("%064x", new BigInteger(1, sha256.digest()));
+    }
+
+    /**
+     * Wait until the bytes of a resource can be downloaded and count them as buffered. When nothing is buffered the
+     * resource is always accepted, whatever its size. When its size is unknown, it only waits for some room, its bytes
+     * are counted as they are written
+     * @param bytes Expected size of the resource, negative if unknown
+     */
+    private synchronized void reserve(Item item, long bytes) throws InterruptedException {
+        bytes = Math.max(bytes, 0);
+        while (bufferedBytes > 0 && (bytes > maxBufferedBytes - bufferedBytes || bufferedBytes >= maxBufferedBytes)) {
+            wait();
+        }
+        bufferedBytes += bytes;
+        item.bufferedBytes = bytes;
+    }
+
+    /**
+     * Wait until the bytes of a resource written beyond the ones counted for it fit, and count them as buffered.
+     * A resource buffered alone always grows, whatever its size
+     * @param bytes Bytes of the resource once the write is over
+     */
+    private synchronized void grow(Item item, long bytes) throws InterruptedException {
+        while (bytes > item.bufferedBytes && bufferedBytes > item.bufferedBytes
+                && bytes - item.bufferedBytes > maxBufferedBytes - bufferedBytes) {
+            wait();
+        }
+        if (bytes > item.bufferedBytes) {
+            bufferedBytes += bytes - item.bufferedBytes;
+            item.bufferedBytes = bytes;
+        }
+    }
+
+    /**
+     * Count the actual size of a downloaded resource instead of the size it was expected to have
+     */
+    private synchronized void resize(Item item, long bytes) {
+        bufferedBytes += bytes - item.bufferedBytes;
+        item.bufferedBytes = bytes;
+        notifyAll();
+    }
+
+    /**
+     * Give the slot of an item back to the download, once the upload has taken it or it will not be uploaded
+     */
+    private void releaseSlot(Item item) {
+        if (item.holdsSlot) {
+            item.holdsSlot = false;
+            slots.release();
+        }
+    }
+
+    /**
+     * Delete the file of an item and give its slot and bytes back to the download
+     */
+    private void close(Item item) {
+        item.close();
+        releaseSlot(item);
+        synchronized (this) {
+            bufferedBytes -= item.bufferedBytes;
+            item.bufferedBytes = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Pass an item to the next stage. The file is deleted if the wait is interrupted, or if the copy returned meanwhile:
+     * a download not interrupted in time ends after the queues have been emptied, and nobody would take its file
+     */
+    private void putOrDiscard(BlockingQueue<Item> out, Item item) throws InterruptedException {
+        try {
+            out.put(item);
+        } catch (InterruptedException e) {
+            close(item);
+            throw e;
+        }
+        //Either the copy empties the queue after this, or the item is removed here, never both
+        if (closed && out.remove(item)) {
+            close(item);
+        }
+    }
+
+    /**
+     * Tell the next stage there are no more resources. When the stage is stopped, the next stage is interrupted too,
+     * so the marker is only added if there is room
+     */
+    private static void end(BlockingQueue<Item> out) {
+        if (Thread.currentThread().isInterrupted()) {
+            out.offer(END);
+            return;
+        }
+        try {
+            out.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void discard(BlockingQueue<Item> queue) {
+        Item item;
+        while ((item = queue.poll()) != null) {
+            close(item);
+        }
+    }
+
+    /**
+     * Stream of the download of a resource, which waits for room in the pipeline before writing more bytes than counted for it
+     */
+    private final class BufferingOutputStream extends FilterOutputStream {
+        private final Item item;
+        private long written;
+
+        private BufferingOutputStream(Item item, OutputStream out) {
+            super(out);
+            this.item = item;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            waitForRoom(written + 1);
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            waitForRoom(written + len);
+            out.write(b, off, len);
+            written += len;
+        }
+
+        private void waitForRoom(long size) throws InterruptedIOException {
+            try {
+                grow(item, size);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the upload of the resources downloaded before");
+            }
+        }
+    }
+
+    /**
+     * Resource going through the pipeline, with its local copy once downloaded
+     */
+    private static final class Item {
+        private final Resource resource;
+        private final String resourceFileName;
+        private TempFileStore.TempFile file;
+        private String hash;
+        //Bytes counted as buffered by the pipeline for this item
+        private long bufferedBytes;
+        //True from the download until the upload takes the item
+        private boolean holdsSlot;
+
+        private Item(Resource resource, String resourceFileName) {
+            this.resource = resource;
+            this.resourceFileName = resourceFileName;
+        }
+
+        private void close() {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+}
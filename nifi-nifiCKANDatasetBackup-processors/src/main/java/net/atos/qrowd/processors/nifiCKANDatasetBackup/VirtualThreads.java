@@ -0,0 +1,98 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when the JVM running NiFi supports them (Java 21 or later).
+ * The processors are built for Java 8, so the Thread.Builder API is reached by reflection.
+ */
+final class VirtualThreads {
+
+    //Thread.ofVirtual(), null when virtual threads are not supported
+    private static final Method OF_VIRTUAL;
+    //Thread.Builder.name(String prefix, long start)
+    private static final Method NAME;
+    //Thread.Builder.factory()
+    private static final Method FACTORY;
+    //Executors.newThreadPerTaskExecutor(ThreadFactory)
+    private static final Method THREAD_PER_TASK;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method threadPerTask = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            threadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            //Before Java 21 virtual threads are a preview feature, ofVirtual() fails unless it is enabled
+            ofVirtual.invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        THREAD_PER_TASK = threadPerTask;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the JVM can create virtual threads
+     */
+    static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create a factory of virtual threads, only when isSupported() is true
+     * @param namePrefix Prefix of the names of the threads, followed by a counter starting at 1
+     * @return The factory of virtual threads
+     */
+    static ThreadFactory newFactory(String namePrefix) {
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 1L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not supported by this version of Java", e);
+        }
+    }
+
+    /**
+     * Create an executor starting a new virtual thread for each task, only when isSupported() is true.
+     * The executor does not bound the tasks running at the same time, the callers do
+     * @param namePrefix Prefix of the names of the threads, followed by a counter starting at 1
+     * @return The executor of virtual threads
+     */
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        try {
+            return (ExecutorService) THREAD_PER_TASK.invoke(null, newFactory(namePrefix));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not supported by this version of Java", e);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import net.atos.qrowd.handlers.fake.FakeCkanServer;
+import net.atos.qrowd.pojos.Resource;
+import org.apache.commons.io.IOUtils;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CKAN_Package_BackupTest {
+
+    private static final String ORGANIZATION = "test_org";
+    private static final String PACKAGE = "test_package";
+    //Latency of each call to the fake server, so the calls of concurrent tasks overlap in CKAN
+    private static final long LATENCY = 20;
+    private static final int FLOWFILES = 12;
+
+    private FakeCkanServer ckan;
+
+    @Before
+    public void init() throws Exception {
+        ckan = new FakeCkanServer();
+        ckan.addOrganization(ORGANIZATION);
+        ckan.addPackage(PACKAGE, ORGANIZATION);
+        ckan.addResource(PACKAGE, "data_0.csv", new byte[1024]);
+        ckan.addResource(PACKAGE, "data_1.csv", new byte[1024]);
+    }
+
+    @After
+    public void close() {
+        ckan.close();
+    }
+
+    @Test
+    public void concurrentTasksScaleUpToThePoolLimit() {
+        ckan.setLatency(LATENCY, LATENCY);
+        //Each task waits for CKAN on its own connection
+        int peak = peakCallsInFlight(4, 10);
+        assertTrue("4 tasks made at most " + peak + " calls at a time", peak > 1 && peak <= 4);
+    }
+
+    @Test
+    public void concurrentTasksBeyondThePoolLimitWait() {
+        ckan.setLatency(LATENCY, LATENCY);
+        //Only 2 tasks talk to CKAN at a time, the other 2 wait for a connection
+        int peak = peakCallsInFlight(4, 2);
+        assertTrue("4 tasks on 2 connections made " + peak + " calls at a time", peak > 1 && peak <= 2);
+    }
+
+    @Test
+    public void streamingCopiesAreBoundedByTheConnectionsPerRoute() {
+        for (int i = 2; i < 8; i++) {
+            ckan.addResource(PACKAGE, "data_" + i + ".csv", new byte[1024]);
+        }
+        ckan.setLatency(LATENCY, LATENCY);
+        TestRunner runner = newRunner(10);
+        runner.setProperty("max_connections_per_route", "2");
+        runner.setProperty("connection_timeout", "2 secs");
+        runner.setProperty("resource_copy_mode", CKAN_Package_Backup.COPY_STREAMING.getValue());
+        runner.setProperty("resource_copy_parallelism", "4");
+
+        //Every call goes to the same host: a copy starts only when its download and its upload both get a connection of the route
+        ckan.resetCounters();
+        backup(runner).assertAttributeEquals("ckan.backup.resources.copied", "8");
+        int peak = ckan.getPeakCallsInFlight();
+        assertTrue("2 connections per route made " + peak + " calls at a time", peak <= 2);
+    }
+
+    @Test
+    public void virtualThreadsFallBackToPlatformThreads() {
+        TestRunner runner = newRunner(2);
+        runner.setProperty("copy_threads", CKAN_Package_Backup.THREADS_VIRTUAL.getValue());
+        runner.setProperty("resource_copy_mode", CKAN_Package_Backup.COPY_STREAMING.getValue());
+        runner.setProperty("resource_copy_parallelism", "2");
+
+        //Before Java 21 the copies run on platform threads, from Java 21 on virtual threads
+        MockFlowFile flowFile = backup(runner);
+        flowFile.assertAttributeEquals("ckan.backup.resources.copied", "2");
+        assertEquals(2, ckan.getContents(flowFile.getAttribute("ckan.backup.package")).size());
+    }
+
+    @Test
+    public void incrementalBackupKeepsOneStateEntryPerPackage() throws IOException {
+        TestRunner runner = newRunner(2);
+        runner.setProperty("incremental_backup", "true");
+
+        MockFlowFile first = backup(runner);
+        first.assertAttributeEquals("ckan.backup.resources.copied", "2");
+        Map<String, String> state = runner.getStateManager().getState(Scope.CLUSTER).toMap();
+        assertEquals(1, state.size());
+        //metadata_modified and two digests
+        assertTrue(state.values().iterator().next().matches("[^|]+\\|[\\w-]{12},[\\w-]{12}"));
+
+        backup(runner).assertAttributeEquals("ckan.backup.unchanged", "true");
+
+        ckan.addResource(PACKAGE, "data_2.csv", new byte[1024]);
+        MockFlowFile third = backup(runner);
+        third.assertAttributeEquals("ckan.backup.resources.copied", "1");
+        third.assertAttributeEquals("ckan.backup.resources.unchanged", "2");
+        assertEquals(1, runner.getStateManager().getState(Scope.CLUSTER).toMap().size());
+    }
+
+    @Test
+    public void catalogIsBackedUpOncePerPassWithoutTheBackups() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            ckan.addPackage("package_" + i, ORGANIZATION);
+            ckan.addResource("package_" + i, "data.csv", new byte[10]);
+        }
+        TestRunner runner = newRunner(2);
+        runner.setProperty("backup_scope", CKAN_Package_Backup.SCOPE_CATALOG.getValue());
+        runner.setProperty("catalog_page_size", "2");
+
+        //Each pass creates a backup of the 6 packages, the backups of the previous passes are left out
+        for (int pass = 0; pass < 2; pass++) {
+            runner.clearTransferState();
+            runner.enqueue(new byte[0]);
+            runner.run();
+            runner.assertQueueEmpty();
+            runner.assertAllFlowFilesTransferred("BACKUP_SUCCESS", 6);
+            Set<String> sources = new HashSet<>();
+            for (MockFlowFile flowFile : runner.getFlowFilesForRelationship("BACKUP_SUCCESS")) {
+                sources.add(flowFile.getAttribute("ckan.backup.source.package"));
+            }
+            assertEquals(6, sources.size());
+            assertTrue(runner.getStateManager().getState(Scope.CLUSTER).toMap().isEmpty());
+        }
+    }
+
+    @Test
+    public void eachBackupGetsItsOwnPackage() {
+        TestRunner runner = newRunner(2);
+        Set<String> backups = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            MockFlowFile flowFile = backup(runner);
+            String backup = flowFile.getAttribute("ckan.backup.package");
+            //The backups started in the same second get a suffix
+            assertTrue(backup, backup.matches(PACKAGE + "\\d{8}_\\d{6}(_\\d+)?"));
+            backups.add(backup);
+        }
+        assertEquals(3, backups.size());
+        assertEquals(4, ckan.getPackageCount());
+        //Every backup links the 2 resources to its own package
+        assertEquals(2 + 3 * 2, ckan.getResourceCount());
+    }
+
+    @Test
+    public void streamingCopyUploadsTheBytesDownloaded() {
+        byte[] content = new byte[200_000];
+        new Random(1).nextBytes(content);
+        ckan.addResource(PACKAGE, "random.bin", content);
+        TestRunner runner = newRunner(2);
+        runner.setProperty("resource_copy_mode", CKAN_Package_Backup.COPY_STREAMING.getValue());
+        runner.setProperty("streaming_buffer_size", "4 KB");
+
+        MockFlowFile flowFile = backup(runner);
+        flowFile.assertAttributeEquals("ckan.backup.resources.copied", "3");
+        Map<String, byte[]> copies = ckan.getContents(flowFile.getAttribute("ckan.backup.package"));
+        assertEquals(3, copies.size());
+        for (Map.Entry<String, byte[]> copy : copies.entrySet()) {
+            assertArrayEquals(copy.getKey(), copy.getKey().startsWith("random") ? content : new byte[1024], copy.getValue());
+        }
+    }
+
+    @Test
+    public void streamingCopyCutShortFails() {
+        byte[] content = new byte[200_000];
+        new Random(1).nextBytes(content);
+        ckan.addResource(PACKAGE, "random.bin", content);
+        TestRunner runner = newRunner(2);
+        runner.setProperty("resource_copy_mode", CKAN_Package_Backup.COPY_STREAMING.getValue());
+        //Only the big resource is cut, after some of it has been sent to the upload
+        ckan.setDownloadCut(50_000);
+
+        runner.enqueue(new byte[0]);
+        runner.run();
+        runner.assertAllFlowFilesTransferred("failure", 1);
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship("failure").get(0);
+        flowFile.assertAttributeEquals("ckan.backup.resources.copied", "2");
+        flowFile.assertAttributeEquals("ckan.backup.resources.failed.names", "random.bin");
+        //No truncated copy is left in the backup
+        Map<String, byte[]> copies = ckan.getContents(flowFile.getAttribute("ckan.backup.package"));
+        assertEquals(2, copies.size());
+        for (String name : copies.keySet()) {
+            assertFalse(name, name.startsWith("random"));
+        }
+    }
+
+    @Test
+    public void archiveHoldsThePackageAndTheFileOfEachResource() throws IOException {
+        byte[] content = new byte[200_000];
+        new Random(1).nextBytes(content);
+        ckan.addResource(PACKAGE, "random.bin", content);
+        //Names are not unique in a package
+        ckan.addResource(PACKAGE, "data_0.csv", content);
+        TestRunner runner = newRunner(2);
+        runner.setProperty("backup_destination", CKAN_Package_Backup.DESTINATION_ZIP.getValue());
+
+        MockFlowFile flowFile = backup(runner);
+        flowFile.assertAttributeEquals("ckan.backup.resources.copied", "4");
+        flowFile.assertAttributeEquals("filename", flowFile.getAttribute("ckan.backup.package") + ".zip");
+        Map<String, byte[]> entries = readArchive(flowFile);
+        assertEquals(5, entries.size());
+        assertEquals("package.json", entries.keySet().iterator().next());
+        assertTrue(new String(entries.get("package.json"), StandardCharsets.UTF_8).contains("\"name\":\"" + PACKAGE + "\""));
+        assertArrayEquals(new byte[1024], entries.get("resources/data_0.csv"));
+        assertArrayEquals(new byte[1024], entries.get("resources/data_1.csv"));
+        assertArrayEquals(content, entries.get("resources/random.bin"));
+        String repeated = null;
+        for (String name : entries.keySet()) {
+            if (name.matches("resources/[\\w-]+_data_0\\.csv")) {
+                repeated = name;
+            }
+        }
+        assertArrayEquals(String.valueOf(repeated), content, entries.get(repeated));
+        //Nothing is written to CKAN
+        assertEquals(1, ckan.getPackageCount());
+    }
+
+    @Test
+    public void archiveLeavesOutTheResourcesThatFailed() throws IOException {
+        Resource lost = ckan.addResource(PACKAGE, "lost.csv", new byte[1024]);
+        ckan.removeContent(lost.getId());
+        TestRunner runner = newRunner(2);
+        runner.setProperty("backup_destination", CKAN_Package_Backup.DESTINATION_ZIP.getValue());
+
+        runner.enqueue(new byte[0]);
+        runner.run();
+        runner.assertAllFlowFilesTransferred("failure", 1);
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship("failure").get(0);
+        flowFile.assertAttributeEquals("ckan.backup.resources.copied", "2");
+        flowFile.assertAttributeEquals("ckan.backup.resources.failed.names", "lost.csv");
+        //The archive is still complete, with the files that could be downloaded
+        Map<String, byte[]> entries = readArchive(flowFile);
+        assertEquals(new HashSet<>(Arrays.asList("package.json", "resources/data_0.csv", "resources/data_1.csv")), entries.keySet());
+    }
+
+    /**
+     * @return The entries of the ZIP archive in a flowfile, by name in the order of the archive
+     */
+    private static Map<String, byte[]> readArchive(MockFlowFile flowFile) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(flowFile.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                assertFalse(entry.getName(), entries.containsKey(entry.getName()));
+                entries.put(entry.getName(), IOUtils.toByteArray(zip));
+            }
+        }
+        return entries;
+    }
+
+    private MockFlowFile backup(TestRunner runner) {
+        runner.clearTransferState();
+        runner.enqueue(new byte[0]);
+        runner.run();
+        runner.assertAllFlowFilesTransferred("BACKUP_SUCCESS", 1);
+        return runner.getFlowFilesForRelationship("BACKUP_SUCCESS").get(0);
+    }
+
+    /**
+     * Back up the package once per flowfile, with the given number of concurrent tasks and connections.
+     * The resources are linked, so every call goes through the connection pool and each task makes one call at a time
+     * @return The most calls CKAN received at the same time
+     */
+    private int peakCallsInFlight(int threads, int connections) {
+        TestRunner runner = newRunner(connections);
+        runner.setThreadCount(threads);
+        for (int i = 0; i < FLOWFILES; i++) {
+            runner.enqueue(new byte[0]);
+        }
+
+        ckan.resetCounters();
+        runner.run(FLOWFILES);
+
+        runner.assertAllFlowFilesTransferred("BACKUP_SUCCESS", FLOWFILES);
+        return ckan.getPeakCallsInFlight();
+    }
+
+    private TestRunner newRunner(int connections) {
+        TestRunner runner = TestRunners.newTestRunner(CKAN_Package_Backup.class);
+        runner.setProperty("CKAN_url", ckan.getUrl());
+        runner.setProperty("Api_Key", "key");
+        runner.setProperty("package_name", PACKAGE);
+        runner.setProperty("resource_copy_mode", "Link");
+        runner.setProperty("max_total_connections", String.valueOf(connections));
+        runner.setProperty("max_connections_per_route", String.valueOf(connections));
+        runner.setRunSchedule(0);
+        return runner;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import net.atos.qrowd.handlers.fake.FakeCkanServer;
+import net.atos.qrowd.services.StandardCKANClientService;
+import org.apache.nifi.processor.Processor;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FetchCKANResourceTest {
+
+    private static final String ORGANIZATION = "test_org";
+    private static final String PACKAGE = "test_package";
+    private static final int RESOURCES = 20;
+    //Latency of each call to the fake server, so the calls in flight together overlap in CKAN
+    private static final long LATENCY = 50;
+
+    private FakeCkanServer ckan;
+
+    @Before
+    public void init() throws Exception {
+        ckan = new FakeCkanServer();
+        ckan.addOrganization(ORGANIZATION);
+        ckan.addPackage(PACKAGE, ORGANIZATION);
+        for (int i = 0; i < RESOURCES; i++) {
+            ckan.addResource(PACKAGE, "data_" + i + ".csv", new byte[1024]);
+        }
+    }
+
+    @After
+    public void close() {
+        ckan.close();
+    }
+
+    @Test
+    public void linksOfABatchAreInFlightTogether() throws InitializationException {
+        TestRunner list = newRunner(ListCKANPackages.class);
+        list.run();
+        List<MockFlowFile> listed = list.getFlowFilesForRelationship("success");
+        assertEquals(RESOURCES, listed.size());
+
+        TestRunner fetch = newRunner(FetchCKANResource.class);
+        fetch.setProperty("resource_copy_mode", CKAN_Package_Backup.COPY_LINK.getValue());
+        fetch.setProperty("batch_size", String.valueOf(RESOURCES));
+        //Starts the clients before the run timed
+        fetch.run(1, false, true);
+        for (MockFlowFile flowFile : listed) {
+            fetch.enqueue(flowFile);
+        }
+
+        ckan.setLatency(LATENCY, LATENCY);
+        ckan.resetCounters();
+        fetch.run(1, true, false);
+
+        fetch.assertAllFlowFilesTransferred("success", RESOURCES);
+        assertEquals(2 * RESOURCES, ckan.getResourceCount());
+        //One task, yet far from a call at a time: the links share the 10 connections of the pool
+        int peak = ckan.getPeakCallsInFlight();
+        assertTrue("One task linking " + RESOURCES + " resources made " + peak + " calls at a time", peak > 1 && peak <= 10);
+
+        //The backup package is not listed
+        ckan.setLatency(0, 0);
+        list.clearTransferState();
+        list.run();
+        list.assertTransferCount("success", 0);
+    }
+
+    @Test
+    public void backupPackageIsOnlySharedByTheSameBackup() throws InitializationException {
+        TestRunner fetch = newRunner(FetchCKANResource.class);
+        fetch.setProperty("resource_copy_mode", CKAN_Package_Backup.COPY_LINK.getValue());
+        fetch.enqueue(new byte[0], resource("data_0.csv", "backup_1"));
+        fetch.run();
+        fetch.assertAllFlowFilesTransferred("success", 1);
+
+        //Another node copying a resource of the same backup
+        TestRunner other = newRunner(FetchCKANResource.class);
+        other.setProperty("resource_copy_mode", CKAN_Package_Backup.COPY_LINK.getValue());
+        other.enqueue(new byte[0], resource("data_1.csv", "backup_1"));
+        //Another backup started in the same second
+        other.enqueue(new byte[0], resource("data_2.csv", "backup_2"));
+        other.run(2);
+        other.assertTransferCount("success", 1);
+        other.assertTransferCount("failure", 1);
+        other.getFlowFilesForRelationship("failure").get(0).assertAttributeEquals("ckan.backup.id", "backup_2");
+        //One backup package with the two resources of its backup
+        assertEquals(2, ckan.getPackageCount());
+        assertEquals(RESOURCES + 2, ckan.getResourceCount());
+    }
+
+    /**
+     * Attributes of a flowfile listed by ListCKANPackages for a resource of the package, with the backup name fixed
+     */
+    private Map<String, String> resource(String name, String backupId) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("ckan.package.name", PACKAGE);
+        attributes.put("ckan.backup.package", PACKAGE + "_backup");
+        attributes.put("ckan.backup.id", backupId);
+        attributes.put("ckan.backup.timestamp", "20180101_000000");
+        attributes.put("ckan.resource.name", name);
+        attributes.put("ckan.resource.url", ckan.getUrl() + "/" + name);
+        return attributes;
+    }
+
+    private TestRunner newRunner(Class<? extends Processor> processor) throws InitializationException {
+        TestRunner runner = TestRunners.newTestRunner(processor);
+        StandardCKANClientService service = new StandardCKANClientService();
+        runner.addControllerService("ckan", service);
+        runner.setProperty(service, StandardCKANClientService.CKAN_url, ckan.getUrl());
+        runner.setProperty(service, StandardCKANClientService.api_key, "key");
+        runner.enableControllerService(service);
+        runner.setProperty("ckan_client_service", "ckan");
+        return runner;
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import net.atos.qrowd.handlers.fake.FakeCkanServer;
+import net.atos.qrowd.pojos.Package_;
+import net.atos.qrowd.services.StandardCKANClientService;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ListCKANPackagesTest {
+
+    private static final String ORGANIZATION = "test_org";
+    private static final String PACKAGE = "test_package";
+    private static final String EMPTY_PACKAGE = "empty_package";
+
+    private FakeCkanServer ckan;
+    private Package_ dataset;
+    private Package_ emptyDataset;
+    private TestRunner runner;
+
+    @Before
+    public void init() throws Exception {
+        ckan = new FakeCkanServer();
+        ckan.addOrganization(ORGANIZATION);
+        dataset = ckan.addPackage(PACKAGE, ORGANIZATION);
+        ckan.addResource(PACKAGE, "data_0.csv", new byte[1024]);
+        ckan.addResource(PACKAGE, "data_1.csv", new byte[1024]);
+        emptyDataset = ckan.addPackage(EMPTY_PACKAGE, ORGANIZATION);
+        runner = newRunner();
+    }
+
+    @After
+    public void close() {
+        ckan.close();
+    }
+
+    @Test
+    public void firstListingOutputsEveryResource() throws IOException {
+        //A page per package
+        runner.setProperty("page_size", "1");
+        List<MockFlowFile> listed = list();
+        assertEquals(3, listed.size());
+
+        Set<String> backupIds = new HashSet<>();
+        Set<String> names = new HashSet<>();
+        for (MockFlowFile flowFile : listed) {
+            if (PACKAGE.equals(flowFile.getAttribute("ckan.package.name"))) {
+                flowFile.assertAttributeEquals("ckan.package.id", dataset.getId());
+                flowFile.assertAttributeEquals("ckan.resource.count", "2");
+                flowFile.assertAttributeEquals("ckan.resource.size", "1024");
+                flowFile.assertAttributeEquals("filename", flowFile.getAttribute("ckan.resource.name"));
+                flowFile.assertAttributeEquals("ckan.backup.package", PACKAGE + flowFile.getAttribute("ckan.backup.timestamp"));
+                backupIds.add(flowFile.getAttribute("ckan.backup.id"));
+                names.add(flowFile.getAttribute("ckan.resource.name"));
+            }
+        }
+        //The resources of a package are copied to the same backup
+        assertEquals(1, backupIds.size());
+        assertEquals(new HashSet<>(Arrays.asList("data_0.csv", "data_1.csv")), names);
+
+        //One entry per package, a digest of its metadata_modified by id
+        Map<String, String> state = runner.getStateManager().getState(Scope.CLUSTER).toMap();
+        assertEquals(new HashSet<>(Arrays.asList(dataset.getId(), emptyDataset.getId())), state.keySet());
+        for (String digest : state.values()) {
+            assertTrue(digest, digest.matches("[\\w-]{12}"));
+        }
+    }
+
+    @Test
+    public void packageWithNoResourcesIsListedOnce() {
+        ckan.removePackage(PACKAGE);
+        List<MockFlowFile> listed = list();
+        assertEquals(1, listed.size());
+        MockFlowFile flowFile = listed.get(0);
+        flowFile.assertAttributeEquals("filename", EMPTY_PACKAGE);
+        flowFile.assertAttributeEquals("ckan.package.name", EMPTY_PACKAGE);
+        flowFile.assertAttributeEquals("ckan.resource.count", "0");
+        assertNull(flowFile.getAttribute("ckan.resource.id"));
+        assertNull(flowFile.getAttribute("ckan.resource.name"));
+    }
+
+    @Test
+    public void onlyModifiedPackagesAreListedAgain() throws InterruptedException {
+        assertEquals(3, list().size());
+        assertEquals(0, list().size());
+
+        //metadata_modified is kept to the millisecond
+        Thread.sleep(5);
+        ckan.addResource(PACKAGE, "data_2.csv", new byte[1024]);
+        List<MockFlowFile> listed = list();
+        assertEquals(3, listed.size());
+        for (MockFlowFile flowFile : listed) {
+            flowFile.assertAttributeEquals("ckan.package.name", PACKAGE);
+        }
+        assertEquals(0, list().size());
+    }
+
+    @Test
+    public void deletedPackagesAreForgotten() throws IOException {
+        list();
+        ckan.removePackage(EMPTY_PACKAGE);
+        assertEquals(0, list().size());
+        assertEquals(Collections.singleton(dataset.getId()), runner.getStateManager().getState(Scope.CLUSTER).toMap().keySet());
+    }
+
+    @Test
+    public void legacyStateIsReplaced() throws IOException {
+        Map<String, String> legacy = new HashMap<>();
+        legacy.put(dataset.getId() + ".metadata_modified", dataset.getMetadataModified());
+        legacy.put(emptyDataset.getId() + ".metadata_modified", "2018-01-01T00:00:00.000000");
+        runner.getStateManager().setState(legacy, Scope.CLUSTER);
+
+        //Only the package modified since the state of the previous version is listed
+        List<MockFlowFile> listed = list();
+        assertEquals(1, listed.size());
+        listed.get(0).assertAttributeEquals("ckan.package.name", EMPTY_PACKAGE);
+        //Both are recorded as the new entries
+        assertEquals(new HashSet<>(Arrays.asList(dataset.getId(), emptyDataset.getId())), runner.getStateManager().getState(Scope.CLUSTER).toMap().keySet());
+        assertEquals(0, list().size());
+    }
+
+    private List<MockFlowFile> list() {
+        runner.clearTransferState();
+        runner.run();
+        runner.assertAllFlowFilesTransferred("success");
+        return runner.getFlowFilesForRelationship("success");
+    }
+
+    private TestRunner newRunner() throws InitializationException {
+        TestRunner runner = TestRunners.newTestRunner(ListCKANPackages.class);
+        StandardCKANClientService service = new StandardCKANClientService();
+        runner.addControllerService("ckan", service);
+        runner.setProperty(service, StandardCKANClientService.CKAN_url, ckan.getUrl());
+        runner.setProperty(service, StandardCKANClientService.api_key, "key");
+        runner.enableControllerService(service);
+        runner.setProperty("ckan_client_service", "ckan");
+        return runner;
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANDatasetBackup;
+
+import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.ContentCallback;
+import net.atos.qrowd.handlers.TempFileStore;
+import net.atos.qrowd.pojos.Resource;
+import org.apache.commons.io.FileUtils;
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResourceCopyPipelineTest {
+
+    private static final int RESOURCES = 6;
+    //Time of each upload, long enough for the download to get as far ahead as it can
+    private static final long UPLOAD_TIME = 30;
+
+    private File directory;
+    private TempFileStore store;
+    private CKAN_API_Handler handler;
+    //Most bytes of the store used during the last copy, as seen by the uploads
+    private long maxUsedSize;
+
+    @Before
+    public void init() throws IOException {
+        directory = Files.createTempDirectory("pipeline").toFile();
+        store = new TempFileStore(directory, 1_000_000);
+    }
+
+    @After
+    public void close() {
+        if (handler != null) {
+            handler.close();
+        }
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void downloadIsAheadByTheQueueSize() throws InterruptedException {
+        assertEquals(1, maxPrefetchDepth(1, Long.MAX_VALUE, 100L));
+        assertEquals(2, maxPrefetchDepth(2, Long.MAX_VALUE, 100L));
+    }
+
+    @Test
+    public void downloadIsAheadByTheBufferedBytes() throws InterruptedException {
+        //The resource uploaded and the one downloaded ahead
+        assertEquals(1, maxPrefetchDepth(4, 250, 100L));
+        assertEquals(200, maxUsedSize);
+    }
+
+    @Test
+    public void downloadOfUnknownSizeWaitsForRoomWhileWriting() throws InterruptedException {
+        maxPrefetchDepth(4, 250, null);
+        assertEquals(200, maxUsedSize);
+        //Sizes lower than the actual ones are not trusted either
+        maxPrefetchDepth(4, 250, 10L);
+        assertTrue(String.valueOf(maxUsedSize), maxUsedSize <= 250);
+        //A resource bigger than the bytes is copied alone
+        maxPrefetchDepth(4, 50, null);
+        assertEquals(100, maxUsedSize);
+    }
+
+    @Test
+    public void downloadEndingAfterTheCopyLeavesNoFile() throws Exception {
+        final CountDownLatch downloading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        handler = new CKAN_API_Handler("http://localhost", "key") {
+            @Override
+            public boolean downloadFilePojo(Resource resource, ContentCallback callback) throws IOException {
+                downloading.countDown();
+                //Like a blocking read of a socket, the interrupt neither stops the download nor is kept once it ends
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        //Ignored
+                    }
+                }
+                Thread.interrupted();
+                callback.process(new ByteArrayInputStream(new byte[100]));
+                return true;
+            }
+        };
+        final ResourceCopyPipeline pipeline = newPipeline(1, Long.MAX_VALUE);
+        Thread copy = new Thread(() -> {
+            try {
+                pipeline.copy(resources(), "backup", "20180101000000");
+            } catch (InterruptedException e) {
+                //Expected
+            }
+        });
+        copy.start();
+        downloading.await();
+        copy.interrupt();
+        copy.join();
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (store.getUsedSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, store.getUsedSize());
+        assertEquals(0, directory.list().length);
+    }
+
+    /**
+     * Copy the resources, of 100 bytes each, with uploads slower than the downloads
+     * @param size Size of the resources given by CKAN, null if unknown
+     * @return The maximum number of resources downloaded, or being downloaded, and not taken by the upload yet
+     */
+    private int maxPrefetchDepth(int queueSize, long maxBufferedBytes, Long size) throws InterruptedException {
+        final AtomicInteger downloads = new AtomicInteger();
+        final AtomicInteger uploads = new AtomicInteger();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final AtomicLong maxUsed = new AtomicLong();
+        handler = new CKAN_API_Handler("http://localhost", "key") {
+            @Override
+            public boolean downloadFilePojo(Resource resource, ContentCallback callback) throws IOException {
+                downloads.incrementAndGet();
+                callback.process(new ByteArrayInputStream(new byte[100]));
+                return true;
+            }
+
+            @Override
+            public boolean uploadFilePojo(Resource resource, String dataset_name, String resourceFileName, File file, String hash) {
+                int uploading = uploads.incrementAndGet();
+                try {
+                    Thread.sleep(UPLOAD_TIME);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                maxDepth.accumulateAndGet(downloads.get() - uploading, Math::max);
+                maxUsed.accumulateAndGet(store.getUsedSize(), Math::max);
+                return true;
+            }
+        };
+        List<Resource> resources = resources();
+        for (Resource res : resources) {
+            res.setSize(size);
+        }
+        List<Resource> failed = newPipeline(queueSize, maxBufferedBytes).copy(resources, "backup", "20180101000000");
+        handler.close();
+        handler = null;
+
+        assertTrue(failed.isEmpty());
+        assertEquals(RESOURCES, uploads.get());
+        assertEquals(0, store.getUsedSize());
+        maxUsedSize = maxUsed.get();
+        return maxDepth.get();
+    }
+
+    private ResourceCopyPipeline newPipeline(int queueSize, long maxBufferedBytes) {
+        return new ResourceCopyPipeline(handler, store, queueSize, maxBufferedBytes, false, Thread::new,
+                new MockComponentLog("pipeline", this));
+    }
+
+    private static List<Resource> resources() {
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < RESOURCES; i++) {
+            Resource res = new Resource();
+            res.setId("id_" + i);
+            res.setName("data_" + i + ".csv");
+            res.setSize(100);
+            resources.add(res);
+        }
+        return resources;
+    }
+}
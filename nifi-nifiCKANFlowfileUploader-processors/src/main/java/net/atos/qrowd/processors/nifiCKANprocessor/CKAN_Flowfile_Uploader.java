@@ -17,12 +17,21 @@
 package net.atos.qrowd.processors.nifiCKANprocessor;
 
 import net.atos.qrowd.handlers.CKAN_API_Handler;
+import net.atos.qrowd.handlers.ConnectionPoolSettings;
+import net.atos.qrowd.handlers.MetadataCacheSettings;
+import net.atos.qrowd.handlers.TempFileStore;
+import net.atos.qrowd.handlers.UploadResult;
+import net.atos.qrowd.services.CKANClientService;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
@@ -30,11 +39,18 @@ import org.apache.nifi.logging.LogLevel;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Tags({"ckan","web service","request","local"})
 @CapabilityDescription("Nifi Processor that will upload the specified flowfile to CKAN through its API, it will create the organization and package if needed.")
@@ -51,16 +67,16 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
     private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
             .Builder().name("CKAN_url")
             .displayName("CKAN Url")
-            .description("Hostname of the CKAN instance to write to")
+            .description("Hostname of the CKAN instance to write to. Not needed when a CKAN Client Service is set")
             .addValidator(StandardValidators.URL_VALIDATOR)
-            .required(true)
+            .required(false)
             .build();
     private static final PropertyDescriptor api_key = new PropertyDescriptor
             .Builder().name("Api_Key")
             .displayName("File Api_Key")
-            .description("Api Key to be used to interact with CKAN")
+            .description("Api Key to be used to interact with CKAN. Not needed when a CKAN Client Service is set")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
-            .required(true)
+            .required(false)
             .sensitive(true)
             .build();
     private static final PropertyDescriptor organization_id = new PropertyDescriptor
@@ -100,11 +116,118 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
             .addValidator(Validator.VALID)
             .required(false)
             .build();
+    private static final PropertyDescriptor ckan_client_service = new PropertyDescriptor
+            .Builder().name("ckan_client_service")
+            .displayName("CKAN Client Service")
+            .description("Controller Service providing the CKAN client shared with other processors. When set, the CKAN Url, Api_Key, connection pool and metadata cache properties of this processor are ignored")
+            .identifiesControllerService(CKANClientService.class)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor batch_size = new PropertyDescriptor
+            .Builder().name("batch_size")
+            .displayName("Batch Size")
+            .description("Maximum number of flowfiles uploaded in a single execution. The flowfiles of a batch are grouped by package, " +
+                    "so the organization is checked once per batch and each package once per batch, and the session is committed once")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor skip_unchanged = new PropertyDescriptor
+            .Builder().name("skip_unchanged")
+            .displayName("Skip Unchanged Files")
+            .description("Compute the SHA-256 of every flowfile, store it in the hash of the CKAN resource, and do not upload the flowfile " +
+                    "when the resource with the same name already has the same hash and size. Those flowfiles are sent to unchanged")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+    static final AllowableValue UPLOAD_STREAM = new AllowableValue("Stream", "Stream",
+            "The content of the flowfile is sent to CKAN as it is read from the content repository");
+    static final AllowableValue UPLOAD_TEMP_FILE = new AllowableValue("Temporary File", "Temporary File",
+            "The content of the flowfile is copied to a temporary file, which is then sent to CKAN");
+    private static final PropertyDescriptor upload_strategy = new PropertyDescriptor
+            .Builder().name("upload_strategy")
+            .displayName("Upload Strategy")
+            .description("How the content of the flowfile is sent to CKAN. Stream avoids writing and reading a copy of every flowfile")
+            .allowableValues(UPLOAD_STREAM, UPLOAD_TEMP_FILE)
+            .defaultValue(UPLOAD_STREAM.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor temp_directory = new PropertyDescriptor
+            .Builder().name("temp_directory")
+            .displayName("Temporary Directory")
+            .description("Directory where the flowfiles are stored, with the Temporary File upload strategy, while they are sent to CKAN. Each processor uses its own subdirectory, " +
+                    "emptied when the processor is started. Defaults to java.io.tmpdir")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .required(false)
+            .build();
+    private static final PropertyDescriptor temp_max_size = new PropertyDescriptor
+            .Builder().name("temp_max_size")
+            .displayName("Max Temporary Storage Size")
+            .description("Maximum size of the flowfiles stored at the same time in the temporary directory. " +
+                    "Flowfiles that would exceed it are sent to failure")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 GB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor metadata_cache_ttl = new PropertyDescriptor
+            .Builder().name("metadata_cache_ttl")
+            .displayName("Metadata Cache TTL")
+            .description("Time the organizations and packages found in CKAN are remembered, so the next uploads to them do not look them up again. " +
+                    "Set to 0 secs to disable the cache")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 mins")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor metadata_cache_size = new PropertyDescriptor
+            .Builder().name("metadata_cache_size")
+            .displayName("Metadata Cache Size")
+            .description("Maximum number of organizations and packages remembered, the least recently used is forgotten first")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(MetadataCacheSettings.DEFAULT_MAX_ENTRIES))
+            .required(true)
+            .build();
+    private static final PropertyDescriptor max_total_connections = new PropertyDescriptor
+            .Builder().name("max_total_connections")
+            .displayName("Max Total Connections")
+            .description("Maximum number of connections to CKAN kept open in the connection pool")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(ConnectionPoolSettings.DEFAULT_MAX_TOTAL_CONNECTIONS))
+            .required(true)
+            .build();
+    private static final PropertyDescriptor max_connections_per_route = new PropertyDescriptor
+            .Builder().name("max_connections_per_route")
+            .displayName("Max Connections Per Route")
+            .description("Maximum number of connections kept open in the connection pool for a single host")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(ConnectionPoolSettings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE))
+            .required(true)
+            .build();
+    private static final PropertyDescriptor connection_timeout = new PropertyDescriptor
+            .Builder().name("connection_timeout")
+            .displayName("Connection Timeout")
+            .description("Maximum time to wait for a connection to CKAN to be established or to be available in the pool")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 secs")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor socket_timeout = new PropertyDescriptor
+            .Builder().name("socket_timeout")
+            .displayName("Socket Timeout")
+            .description("Maximum time to wait for data from CKAN once the connection is established")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("60 secs")
+            .required(true)
+            .build();
 
     private static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("SUCCESS")
             .description("Success relationship")
             .build();
+    private static final Relationship REL_UNCHANGED = new Relationship.Builder()
+            .name("unchanged")
+            .description("Flowfiles with the same content as the resource already stored in CKAN, only when Skip Unchanged Files is true")
+            .build();
     private static final Relationship REL_FAILURE = new Relationship.Builder()
             .name("failure")
             .description(
@@ -113,11 +236,20 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
 
     private List<PropertyDescriptor> descriptors;
 
-    private Set<Relationship> relationships;
+    private volatile Set<Relationship> relationships;
+
+    //Handler shared by all the concurrent tasks of the processor, it holds no per flowfile state
+    private volatile CKAN_API_Handler ckan_api_handler;
+    //False when the handler is provided by the CKAN client service, which is in charge of closing it
+    private volatile boolean ownsHandler;
+    //Holds the flowfiles while they are uploaded, only with the Temporary File upload strategy
+    private volatile TempFileStore tempFileStore;
+    private volatile boolean skipUnchanged;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(ckan_client_service);
         descriptors.add(CKAN_url);
         descriptors.add(api_key);
         descriptors.add(organization_id);
@@ -125,6 +257,17 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
         descriptors.add(package_description);
         descriptors.add(package_private);
         descriptors.add(tag_list);
+        descriptors.add(batch_size);
+        descriptors.add(skip_unchanged);
+        descriptors.add(upload_strategy);
+        descriptors.add(temp_directory);
+        descriptors.add(temp_max_size);
+        descriptors.add(metadata_cache_ttl);
+        descriptors.add(metadata_cache_size);
+        descriptors.add(max_total_connections);
+        descriptors.add(max_connections_per_route);
+        descriptors.add(connection_timeout);
+        descriptors.add(socket_timeout);
 
         this.descriptors = Collections.unmodifiableList(descriptors);
 
@@ -139,17 +282,97 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
         return this.relationships;
     }
 
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        //The unchanged relationship only exists when the unchanged files are skipped
+        if (descriptor.equals(skip_unchanged)) {
+            final Set<Relationship> relationships = new HashSet<>();
+            relationships.add(REL_SUCCESS);
+            relationships.add(REL_FAILURE);
+            if (Boolean.parseBoolean(newValue)) {
+                relationships.add(REL_UNCHANGED);
+            }
+            this.relationships = Collections.unmodifiableSet(relationships);
+        }
+    }
+
     @Override
     public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final boolean serviceSet = validationContext.getProperty(ckan_client_service).isSet();
+        final boolean connectionSet = validationContext.getProperty(CKAN_url).isSet() && validationContext.getProperty(api_key).isSet();
+        if (!serviceSet && !connectionSet) {
+            results.add(new ValidationResult.Builder()
+                    .subject(ckan_client_service.getDisplayName())
+                    .valid(false)
+                    .explanation("either a CKAN Client Service or both the CKAN Url and the Api_Key must be set")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        final boolean streamUpload = UPLOAD_STREAM.getValue().equals(context.getProperty(upload_strategy).getValue());
+        tempFileStore = streamUpload ? null : createTempFileStore(context);
+        skipUnchanged = context.getProperty(skip_unchanged).asBoolean();
+
+        if (context.getProperty(ckan_client_service).isSet()) {
+            ckan_api_handler = context.getProperty(ckan_client_service).asControllerService(CKANClientService.class).getHandler();
+            ownsHandler = false;
+            return;
+        }
+
+        String url = context.getProperty(CKAN_url).getValue();
+        final String apiKey = context.getProperty(api_key).getValue();
+
+        ConnectionPoolSettings poolSettings = new ConnectionPoolSettings(
+                context.getProperty(max_total_connections).asInteger(),
+                context.getProperty(max_connections_per_route).asInteger(),
+                context.getProperty(connection_timeout).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(socket_timeout).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+
+        MetadataCacheSettings cacheSettings = new MetadataCacheSettings(
+                context.getProperty(metadata_cache_ttl).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(metadata_cache_size).asInteger());
+
+        //The connection pool and the metadata cache are kept while the processor is running
+        ckan_api_handler = new CKAN_API_Handler(url, apiKey, poolSettings, cacheSettings);
+        ownsHandler = true;
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (ckan_api_handler != null && ownsHandler) {
+            ckan_api_handler.close();
+        }
+        ckan_api_handler = null;
+        tempFileStore = null;
+    }
+
+    /**
+     * Create the temporary store of the processor, in its own subdirectory of the configured one
+     */
+    private TempFileStore createTempFileStore(final ProcessContext context) throws IOException {
+        String baseDirectory = context.getProperty(temp_directory).isSet()
+                ? context.getProperty(temp_directory).getValue()
+                : System.getProperty("java.io.tmpdir");
+        File directory = new File(baseDirectory, getIdentifier());
+        long maxSize = context.getProperty(temp_max_size).asDataSize(DataUnit.B).longValue();
+        getLogger().info("Using {} as temporary directory, up to {} bytes", new Object[]{directory, maxSize});
+        return new TempFileStore(directory, maxSize);
+    }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
+        List<FlowFile> flowFiles = session.get(context.getProperty(batch_size).asInteger());
 
-        if (flowFile == null) {
+        if (flowFiles.isEmpty()) {
             return;
         }
         //This is the way to get the value of a property
@@ -157,19 +380,100 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
 
         String tagList = context.getProperty(tag_list).getValue();
 
-        String filename = flowFile.getAttribute(CoreAttributes.FILENAME.key());
-
-        String tDir = System.getProperty("java.io.tmpdir");
-        String path = tDir + "/"+filename;
-        Path file = Paths.get(path);
-        session.exportTo(flowFile, file, false);
-
-        final String apiKey = context.getProperty(api_key).getValue();
-        final String packageDescription = context.getProperty(package_description).evaluateAttributeExpressions(flowFile).getValue();
         final boolean packagePrivate;
         packagePrivate = context.getProperty(package_private).getValue().equals("True");
 
+        final String organizationId = context.getProperty(organization_id).getValue();
+
+        //Group the flowfiles by the package they are uploaded to, keeping the order in which they were received
+        Map<String, List<FlowFile>> flowFilesByPackage = new LinkedHashMap<>();
+        for (FlowFile flowFile : flowFiles) {
+            flowFilesByPackage.computeIfAbsent(getPackageName(context, flowFile), name -> new ArrayList<>()).add(flowFile);
+        }
+
+        //  *******************
+        //   Main logic of the CKAN uploader
+        // - Check that the target organization exists in CKAN, once per batch
+        //      - If it doesn't, create it
+        // - For each package of the batch, check if it exists in CKAN
+        //      - If it doesn't, create it
+        //      - Upload the files of the package to CKAN, with their filename as ID
+        // -- In case of any exception in the process, send the flowfile (or all the flowfiles of the package) to FAILURE.
+        // *********************
+
+        boolean organizationChecked = false;
+        for (Map.Entry<String, List<FlowFile>> packageFlowFiles : flowFilesByPackage.entrySet()) {
+            final String packageName = packageFlowFiles.getKey();
+            try {
+                if (!organizationChecked) {
+                    if (!ckan_api_handler.organizationExists(organizationId)) {
+                        ckan_api_handler.createOrganization(organizationId);
+                    }
+                    organizationChecked = true;
+                }
+                if (!ckan_api_handler.packageExists(packageName)) {
+                    //The description may use the attributes of the flowfile, the first one of the package is used
+                    final String packageDescription = context.getProperty(package_description)
+                            .evaluateAttributeExpressions(packageFlowFiles.getValue().get(0)).getValue();
+                    if (!ckan_api_handler.createPackage(packageName, organizationId, packageDescription, packagePrivate, tagList)) {
+                        throw new IOException("CKAN did not create the package " + packageName);
+                    }
+                }
+            }catch(Exception e)
+            {
+                getLogger().error("Error while preparing the package {} of CKAN {}: Organization {}.",
+                        new Object[]{packageName, url, organizationId });
+                getLogger().error(e.toString());
+                for (FlowFile flowFile : packageFlowFiles.getValue()) {
+                    session.transfer(session.penalize(flowFile), REL_FAILURE);
+                }
+                continue;
+            }
+
+            for (FlowFile flowFile : packageFlowFiles.getValue()) {
+                upload(session, flowFile, packageName, url, organizationId);
+            }
+        }
+        //The whole batch is committed at once by AbstractProcessor when onTrigger returns
+    }
+
+    /**
+     * Upload a flowfile to its package, that must exist, and transfer it to the relationship matching the result
+     */
+    private void upload(final ProcessSession session, final FlowFile flowFile, final String packageName, final String url, final String organizationId) {
+        String filename = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+        try {
+            final UploadResult result = uploadContent(session, flowFile, filename, packageName);
+            if(result == UploadResult.FAILED) {
+                getLogger().error("CKAN {} did not accept the file {} in package {}", new Object[]{url, filename, packageName});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }else if(result == UploadResult.UNCHANGED) {
+                getLogger().info("File already in CKAN with the same content: {}", new Object[]{filename});
+                session.transfer(flowFile, REL_UNCHANGED);
+            }else
+            {
+                getLogger().info("File tried to be uploaded to CKAN: {}", new Object[]{filename});
+                session.transfer(flowFile, REL_SUCCESS);
+            }
+        }catch(IOException | ProcessException ioe)
+        {
+            //The errors reading the content, or sending it while it is read, come wrapped in a ProcessException by the session
+            getLogger().log(LogLevel.ERROR, "Error while uploading file {} to CKAN {}: Organization {}.",
+                    new Object[]{filename, url, organizationId });
+            getLogger().error(ioe.toString());
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        }catch(Exception e)
+        {
+            getLogger().error("Unexpected error");
+            getLogger().error(e.toString());
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        }
+    }
 
+    /**
+     * Get the name of the package a flowfile is uploaded to
+     */
+    private String getPackageName(final ProcessContext context, final FlowFile flowFile) {
         String datasetName = flowFile.getAttribute("ckan_package_name");
 
         //If the property package_name is not filled, then use the filename (without extension) as package name
@@ -190,53 +494,74 @@ public class CKAN_Flowfile_Uploader extends AbstractProcessor {
         //Check if the property is filled with spaces, empty, or null to use the file name as filename
         if(filenameNoExtension == null || filenameNoExtension.isEmpty() || filenameNoExtension.trim().length()==0)
         {
-            filenameNoExtension=getFileName(filename);
+            filenameNoExtension=getFileName(flowFile.getAttribute(CoreAttributes.FILENAME.key()));
             getLogger().info("Dataset name got from filename: "+filenameNoExtension);
         }
-        final String organizationId = context.getProperty(organization_id).getValue();
-
-        //  *******************
-        //   Main logic of the CKAN uploader
-        // - Create the CKAN API Handler
-        // - Check that the target organization exists in CKAN
-        //      - If it doesn't, create it
-        // - Check if the package exists in CKAN
-        //      - If it doesn't, create it
-        // - Upload the file to CKAN, with it's filename as ID
-        // -- In case of any exception in the process, send the flowfile to FAILURE.
-        // *********************
+        return filenameNoExtension;
+    }
 
-        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey, filenameNoExtension, organizationId, packageDescription, packagePrivate);
-        try {
-            if (!ckan_api_handler.organizationExists()) {
-                ckan_api_handler.createOrganization();
-            }
-            if (!ckan_api_handler.packageExists(filenameNoExtension)) {
-                ckan_api_handler.createPackage(filenameNoExtension,tagList);
+    /**
+     * Send the content of the flowfile to the package, reading it straight from the content repository
+     * or from a temporary copy, depending on the upload strategy. When the unchanged files are skipped, the SHA-256 of
+     * the content is stored in the resource, computed while the content is read to be sent, so it is read only once
+     * unless the package has a resource with the same name and size: then it is hashed first to know if it changed
+     * @return What was done with the content
+     */
+    private UploadResult uploadContent(final ProcessSession session, final FlowFile flowFile, final String filename, final String packageName)
+            throws IOException {
+        final AtomicReference<UploadResult> result = new AtomicReference<>();
+        if (tempFileStore == null) {
+            if (!skipUnchanged) {
+                session.read(flowFile, in -> result.set(ckan_api_handler.createOrUpdateResource(in, flowFile.getSize(), filename, packageName, null)));
+            } else if (!ckan_api_handler.mayBeUnchanged(filename, packageName, flowFile.getSize())) {
+                session.read(flowFile, in -> result.set(ckan_api_handler.createOrUpdateResourceHashing(in, flowFile.getSize(), filename, packageName)));
+            } else {
+                final String hash = digest(session, flowFile);
+                session.read(flowFile, in -> result.set(ckan_api_handler.createOrUpdateResource(in, flowFile.getSize(), filename, packageName, hash)));
             }
-            if(ckan_api_handler.createOrUpdateResource(file.toFile().toString())) {
-                getLogger().info("File tried to be uploaded to CKAN: {}", new Object[]{file.toFile().toString()});
-                session.transfer(flowFile, REL_SUCCESS);
-                ckan_api_handler.close();
-            }else
-            {
-                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            return result.get();
+        }
+        try (TempFileStore.TempFile tempFile = tempFileStore.create(filename, flowFile.getSize())) {
+            //The exported copy is hashed while it is written, and deleted as soon as the upload ends
+            final MessageDigest sha256 = newSha256();
+            session.read(flowFile, in -> {
+                try (OutputStream out = new DigestOutputStream(tempFile.openOutputStream(), sha256)) {
+                    StreamUtils.copy(in, out);
+                }
+            });
+            final String hash = skipUnchanged ? toHex(sha256) : null;
+            return ckan_api_handler.createOrUpdateResource(tempFile.getFile().toString(), packageName, hash);
+        }
+    }
+
+    /**
+     * Compute the SHA-256 of the content of the flowfile, reading it from the content repository
+     * @return The hash as lowercase hex
+     */
+    private static String digest(final ProcessSession session, final FlowFile flowFile) {
+        final MessageDigest sha256 = newSha256();
+        session.read(flowFile, in -> {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sha256.update(buffer, 0, read);
             }
-        }catch(IOException ioe)
-        {
-            getLogger().log(LogLevel.ERROR, "Error while uploading file {} to CKAN {}: Organization {}.",
-                    new Object[]{file, url, organizationId });
-            getLogger().error(ioe.toString());
-            session.transfer(session.penalize(flowFile), REL_FAILURE);
-        }catch(Exception e)
-        {
-            getLogger().error("Unexpected error");
-            getLogger().error(e.toString());
-            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        });
+        return toHex(sha256);
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
         }
-        session.commit();
     }
 
+    private static String toHex(final MessageDigest digest) {
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
 
     private String getFileName(String file){
 
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2018 Atos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.handlers.fake.FakeCkanServer;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CKAN_Flowfile_UploaderTest {
+
+    private static final String ORGANIZATION = "test_org";
+    private static final String PACKAGE = "test_package";
+    //Latency of each call to the fake server, so the calls of concurrent tasks overlap in CKAN
+    private static final long LATENCY = 10;
+    private static final int FLOWFILES = 24;
+
+    private FakeCkanServer ckan;
+
+    @Before
+    public void init() throws Exception {
+        ckan = new FakeCkanServer();
+        ckan.addOrganization(ORGANIZATION);
+        ckan.addPackage(PACKAGE, ORGANIZATION);
+    }
+
+    @After
+    public void close() {
+        ckan.close();
+    }
+
+    @Test
+    public void concurrentTasksScaleUpToThePoolLimit() {
+        ckan.setLatency(LATENCY, LATENCY);
+        //Each task waits for CKAN on its own connection
+        int peak = peakCallsInFlight(4, 10);
+        assertTrue("4 tasks made at most " + peak + " calls at a time", peak > 1 && peak <= 4);
+    }
+
+    @Test
+    public void concurrentTasksBeyondThePoolLimitWait() {
+        ckan.setLatency(LATENCY, LATENCY);
+        //Only 2 tasks talk to CKAN at a time, the other 2 wait for a connection
+        int peak = peakCallsInFlight(4, 2);
+        assertTrue("4 tasks on 2 connections made " + peak + " calls at a time", peak > 1 && peak <= 2);
+    }
+
+    @Test
+    public void uploadsRejectedByCkanGoToFailure() {
+        TestRunner runner = newRunner();
+        runner.setProperty("batch_size", "10");
+        enqueue(runner, "accepted.csv", new byte[10]);
+        runner.run();
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        runner.clearTransferState();
+
+        //The organization and the package are cached, only the uploads reach CKAN
+        ckan.setErrorRate(1);
+        enqueue(runner, "accepted.csv", new byte[10]);
+        runner.run();
+        runner.assertAllFlowFilesTransferred("failure", 1);
+    }
+
+    @Test
+    public void unchangedFilesAreSkippedWhenStreamed() {
+        skipUnchanged("Stream");
+    }
+
+    @Test
+    public void unchangedFilesAreSkippedFromTemporaryFiles() {
+        skipUnchanged("Temporary File");
+    }
+
+    private void skipUnchanged(String uploadStrategy) {
+        TestRunner runner = newRunner();
+        runner.setProperty("skip_unchanged", "true");
+        runner.setProperty("upload_strategy", uploadStrategy);
+        ckan.resetCounters();
+
+        enqueue(runner, "data.csv", "content".getBytes());
+        runner.run();
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        runner.clearTransferState();
+
+        enqueue(runner, "data.csv", "content".getBytes());
+        runner.run();
+        runner.assertAllFlowFilesTransferred("unchanged", 1);
+        runner.clearTransferState();
+
+        //Same size, different content
+        enqueue(runner, "data.csv", "changed".getBytes());
+        runner.run();
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        assertEquals(1, ckan.getCalls("resource_create"));
+        assertEquals(1, ckan.getCalls("resource_patch"));
+    }
+
+    /**
+     * Upload the flowfiles with the given number of concurrent tasks and connections
+     * @return The most calls CKAN received at the same time
+     */
+    private int peakCallsInFlight(int threads, int connections) {
+        TestRunner runner = newRunner();
+        runner.setProperty("max_total_connections", String.valueOf(connections));
+        runner.setProperty("max_connections_per_route", String.valueOf(connections));
+        runner.setThreadCount(threads);
+        for (int i = 0; i < FLOWFILES; i++) {
+            enqueue(runner, "file_" + threads + "_" + connections + "_" + i + ".csv", new byte[1024]);
+        }
+
+        ckan.resetCounters();
+        runner.run(FLOWFILES);
+
+        runner.assertAllFlowFilesTransferred("SUCCESS", FLOWFILES);
+        return ckan.getPeakCallsInFlight();
+    }
+
+    private TestRunner newRunner() {
+        TestRunner runner = TestRunners.newTestRunner(CKAN_Flowfile_Uploader.class);
+        runner.setProperty("CKAN_url", ckan.getUrl());
+        runner.setProperty("Api_Key", "key");
+        runner.setProperty("organization_id", ORGANIZATION);
+        runner.setRunSchedule(0);
+        return runner;
+    }
+
+    private static void enqueue(TestRunner runner, String filename, byte[] content) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(CoreAttributes.FILENAME.key(), filename);
+        attributes.put("ckan_package_name", PACKAGE);
+        runner.enqueue(content, attributes);
+    }
+}